@@ -225,7 +225,7 @@ const App = () => {
             setImgSize(aspRatio);
           });
           
-          ColorPaletteModule.getColorPalette(img.uri);  
+          ColorPaletteModule.getColorPalette(img.uri, {});  
         }
       }
     });
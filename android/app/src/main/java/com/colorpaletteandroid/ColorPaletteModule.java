@@ -1,41 +1,99 @@
 package com.colorpaletteandroid;
+import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
-import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.lang.Runtime;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.facebook.react.bridge.NativeModule;
+import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableMap;
-import com.facebook.react.bridge.WritableNativeArray;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
 import android.util.Log;
 import android.net.Uri;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.ImageDecoder;
 import android.content.Context;
-import android.graphics.Color;
+import android.database.Cursor;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
 
 /**
  * Android Native module to generate a color palette from an image. 
  */
-public class ColorPaletteModule extends ReactContextBaseJavaModule implements PaletteCallback{
+public class ColorPaletteModule extends ReactContextBaseJavaModule {
 
     //used for all Context related things, ReactContext/ReactApplicationContext extend Context, 
     //so they can be used by type casting c as well
     Context c;
 
+    //shared by all the palette requests, runs the restarts by request priority. Shut down along with the React context
+    private final PriorityExecutor clusterExecutor;
+    //splits single restarts across cores for the parallelAssign option
+    private final ForkJoinPool assignPool;
+    //palettes of images that were already processed, kept in memory and in the app's cache dir
+    private final PaletteCache paletteCache;
+    //decodes the images, so that the bridge thread returns right away and decoding overlaps with clustering. 
+    //Requests are decoded by priority, decoding is mostly I/O so 2 threads are enough to keep the clustering threads busy
+    private final PriorityExecutor decodeExecutor;
+    //sends the palettes to JS, so the clustering threads never wait for the bridge
+    private final ThreadPoolExecutor emitExecutor;
+    //inserts into and queries the palette index one at a time, off the bridge thread
+    private final ThreadPoolExecutor indexExecutor;
+    //similarity index of the palettes in the app's files dir, opened by the first index call(only used on indexExecutor)
+    private PaletteIndex paletteIndex;
+    //no of images that can be decoded and not yet finished at the same time, bounds the memory of the pixel buffers
+    private final Semaphore inFlight;
+    //for generated request ids
+    private final AtomicLong requestCounter = new AtomicLong();
+    //timers and counters of all the requests
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    //requests that have a key and aren't finished, by key. A newer request with the same key cancels the older one
+    private final ConcurrentHashMap<String, PaletteRequest> keyedRequests = new ConcurrentHashMap<>();
+    //requests that are queued or running, settled with MODULE_DESTROYED if the module is destroyed first
+    private final Set<PaletteRequest> pendingRequests = Collections.newSetFromMap(new ConcurrentHashMap<PaletteRequest, Boolean>());
+    //open streaming sessions by id
+    private final ConcurrentHashMap<String, PaletteSession> sessions = new ConcurrentHashMap<>();
+    //error of the requests and promises that are dropped when the module is destroyed
+    private static final String MODULE_DESTROYED = "module destroyed";
+    //decoder of every decode thread, its pixel buffer is reused by all the images decoded on that thread
+    private static final ThreadLocal<PixelDecoder> DECODER = new ThreadLocal<PixelDecoder>(){
+        @Override
+        protected PixelDecoder initialValue(){
+            return new PixelDecoder();
+        }
+    };
+
     ColorPaletteModule(ReactApplicationContext context){
         super(context);
         c = context;
+        clusterExecutor = new PriorityExecutor(Runtime.getRuntime().availableProcessors(), daemonThreads("palette-cluster"));
+        decodeExecutor = new PriorityExecutor(2, daemonThreads("palette-decode"));
+        emitExecutor = newQueueExecutor(1, "palette-emit");
+        indexExecutor = newQueueExecutor(1, "palette-index");
+        inFlight = new Semaphore(2 * Runtime.getRuntime().availableProcessors());
+        assignPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        paletteCache = new PaletteCache(256, 256 * 1024, new File(context.getCacheDir(), "palettes"), 4096, 4 * 1024 * 1024);
     }
 
     @Override
@@ -44,132 +102,880 @@ public class ColorPaletteModule extends ReactContextBaseJavaModule implements Pa
     }
 
     /**
-     * Loads a bitmap of the image, scales it down, and passes it to GenColorPalette
-     * @param uri   Image uri
+     * Stops the clustering threads when the React context is destroyed, running restarts 
+     * are interrupted and exit at their next iteration. Queued and running requests are dropped, 
+     * the promises of their batches are rejected with MODULE_DESTROYED
+     */
+    @Override
+    public void onCatalystInstanceDestroy(){
+        super.onCatalystInstanceDestroy();
+        for(PaletteSession session : sessions.values()){
+            session.close();
+        }
+        sessions.clear();
+        decodeExecutor.shutdownNow();
+        clusterExecutor.shutdownNow();
+        assignPool.shutdownNow();
+        emitExecutor.shutdownNow();
+        //the queued tasks of these requests were dropped, so they would never finish
+        for(PaletteRequest req : pendingRequests){
+            req.abort(MODULE_DESTROYED);
+        }
+        //the index is closed after the queued inserts
+        indexExecutor.execute(new Runnable(){
+            @Override
+            public void run(){
+                try{
+                    if(paletteIndex != null) paletteIndex.close();
+                }
+                catch(IOException e){
+                    log("INDEX ERROR: " + e.toString());
+                }
+            }
+        });
+        indexExecutor.shutdown();
+    }
+
+    /**
+     * Generates the palette of an image. The image is decoded and clustered on background threads, 
+     * the palettes are sent to JS as "paletteGen" events tagged with the request id
+     * @param uri       Image uri
+     * @param opts      (can be null) palette options:
+     *                  requestId       id sent with every event of this request(default: a generated id)
+     *                  key             supersession key(eg. a view or grid slot id), a newer request with the same key 
+     *                                  cancels this one if it isn't finished, and a "paletteCancelled" event is sent for it
+     *                  priority        higher is decoded and clustered first(default 0, eg. 1 for visible items)
+     *                  index           add the final palette to the palette index under the uri(default false), 
+     *                                  see queryPaletteIndex
+     *                  k               no of colors in the palette(default 16)
+     *                  restarts        no of clustering restarts(default 10, or 1 with parallelAssign or the fastpam engine)
+     *                  maxDimension    longer side of the scaled down image(default 500, 1600 with the clara engine)
+     *                  engine          "pam"(default) clusters all the colors, "clara" clusters random samples of 
+     *                                  samplePixels(default 4096) pixels and assigns all the colors once per restart, 
+     *                                  "fastpam" swaps medoids with swapCandidates(default 16) colors per pass 
+     *                                  for a lower cost in a single restart, 
+     *                                  "median-cut" and "octree" quantize a histogram of the pixels in a few ms(no restarts)
+     *                  seedWith        "median-cut" or "octree", starts the first pam/clara/fastpam restart from that palette
+     *                  seed            seed for a repeatable palette
+     *                  distance        "packed"(default), "rgb", "lab" or "oklab"
+     *                  compress        cluster unique colors with their counts(default true)
+     *                  quantizeBits    bits per channel to keep before compressing(default 0, ie. off)
+     *                  maxIterations, minCostDelta, minMovedFraction   convergence criteria of every restart
+     *                  pruneRatio, pruneAfter      stop restarts that are far behind the best one(pruneRatio 0 is off)
+     *                  reportStats     send a "paletteStats" event after every restart
+     *                  parallelAssign  run a single restart with every assignment pass split across cores
+     *                  sortedAssign    use the sorted sweep for the packed metric(default true)
+     *                  cache           use the palette cache(default true), a cached palette is sent 
+     *                                  as the final palette right away
+     *                  progressive     send a coarse palette of a previewPixels(default 5000) pixel sample first, 
+     *                                  the first restart refines it
+     *                  maxEmitsPerSecond   max no of intermediate palettes per second(default 10, 0 for no limit)
+     *                  metrics         send the module's metrics(see getPaletteMetrics) with the final palette
+     *                  encoding        "maps"(default), "packed" or "base64", see PaletteEncoding
+     *                  warmIterations, sceneChangeThreshold, minPaletteChange     see startPaletteSession
+     */
+    @ReactMethod
+    public void getColorPalette(String uri, ReadableMap opts){
+        String requestId = readRequestId(opts);
+        try{
+            PaletteOptions paletteOptions = parseOptions(opts);
+            PaletteRequest req = new PaletteRequest(requestId, uri, paletteOptions, readEncoding(opts), null, readKey(opts));
+            req.index = readIndex(opts);
+            submitRequest(req);
+        }
+        catch(Exception e){
+            log("GENCOLORPALETTE ERROR: " + e.toString());
+            emitError(requestId, uri, e);
+        }
+    }
+
+    /**
+     * Generates the palettes of a list of images. Images are decoded while earlier ones are being clustered, 
+     * every image gets the request id "<requestId>/<index in uris>"(and the key "<key>/<index in uris>") in its events
+     * @param uris      image uris
+     * @param opts      (can be null) palette options, same as getColorPalette, used for every image
+     * @param promise   resolved with an array(in the order of uris) of {requestId, uri, encoding, <palette>}, 
+     *                  or {requestId, uri, error} for images that failed, once every image is done
+     */
+    @ReactMethod
+    public void getColorPalettes(ReadableArray uris, ReadableMap opts, Promise promise){
+        PaletteOptions paletteOptions;
+        PaletteEncoding encoding;
+        try{
+            paletteOptions = parseOptions(opts);
+            encoding = readEncoding(opts);
+        }
+        catch(Exception e){
+            promise.reject("E_OPTIONS", e);
+            return;
+        }
+
+        String batchId = readRequestId(opts);
+        String batchKey = readKey(opts);
+        boolean index = readIndex(opts);
+        Batch batch = new Batch(uris.size(), promise);
+        if(uris.size() == 0){
+            batch.resolve();
+            return;
+        }
+        for(int i = 0; i < uris.size(); i++){
+            PaletteRequest req = new PaletteRequest(batchId + "/" + i, uris.getString(i), paletteOptions, encoding, batch,
+                    batchKey == null ? null : batchKey + "/" + i);
+            req.index = index;
+            batch.requests[i] = req;
+            submitRequest(req);
+        }
+    }
+
+    /**
+     * Adds a palette to the palette index, replacing the palette the id had. Only the 16 largest clusters are kept
+     * @param id        image id(eg. its uri), at most 156 bytes in UTF-8
+     * @param colors    palette colors as ARGB ints(the PACKED encoding's colors, signed or unsigned)
+     * @param sizes     size of every cluster
+     * @param promise   resolved with the no of palettes in the index
+     */
+    @ReactMethod
+    public void indexPalette(final String id, ReadableArray colors, ReadableArray sizes, final Promise promise){
+        if(rejectIfDestroyed(promise)) return;
+        final int[] palette = readInts(colors);
+        final int[] clusterSizes = readInts(sizes);
+        indexExecutor.execute(new Runnable(){
+            @Override
+            public void run(){
+                try{
+                    PaletteIndex index = openIndex();
+                    index.put(id, palette, clusterSizes);
+                    promise.resolve(index.size());
+                }
+                catch(Exception e){
+                    promise.reject("E_INDEX", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Finds the indexed images whose palettes are closest to a palette, under an earth mover's style distance 
+     * in OKLab weighted by the cluster sizes(see PaletteIndex). Only the images that share a coarse color 
+     * with the palette are compared
+     * @param colors    palette colors as ARGB ints
+     * @param sizes     size of every cluster
+     * @param k         max no of images
+     * @param promise   resolved with an array of {id, distance}, closest first
+     */
+    @ReactMethod
+    public void queryPaletteIndex(ReadableArray colors, ReadableArray sizes, final int k, final Promise promise){
+        if(rejectIfDestroyed(promise)) return;
+        final int[] palette = readInts(colors);
+        final int[] clusterSizes = readInts(sizes);
+        indexExecutor.execute(new Runnable(){
+            @Override
+            public void run(){
+                try{
+                    List<PaletteIndex.Match> matches = openIndex().query(palette, clusterSizes, k);
+                    WritableArray results = Arguments.createArray();
+                    for(PaletteIndex.Match match : matches){
+                        WritableMap map = Arguments.createMap();
+                        map.putString("id",match.id);
+                        map.putDouble("distance",match.distance);
+                        results.pushMap(map);
+                    }
+                    promise.resolve(results);
+                }
+                catch(Exception e){
+                    promise.reject("E_INDEX", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param promise   promise of an index call
+     * @return boolean  true if the module was destroyed, the promise is rejected
+     */
+    private boolean rejectIfDestroyed(Promise promise){
+        if(!indexExecutor.isShutdown()) return false;
+        promise.reject("E_DESTROYED", MODULE_DESTROYED);
+        return true;
+    }
+
+    /**
+     * adds a final palette to the index, for requests with the index option
+     */
+    private void indexFinalPalette(final String id, final int[] palette, final int[] clusterSizes){
+        if(indexExecutor.isShutdown()) return;
+        indexExecutor.execute(new Runnable(){
+            @Override
+            public void run(){
+                try{
+                    openIndex().put(id, palette, clusterSizes);
+                }
+                catch(Exception e){
+                    log("INDEX ERROR: " + e.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return PaletteIndex     the palette index, opened on first use. Only called on indexExecutor
+     * @throws IOException if the index files can't be opened
+     */
+    private PaletteIndex openIndex() throws IOException{
+        if(paletteIndex == null) paletteIndex = new PaletteIndex(new File(c.getFilesDir(), "palette-index"));
+        return paletteIndex;
+    }
+
+    /**
+     * @return int[]    the numbers of the array as ints(unsigned ARGB values wrap around to the signed ints)
+     */
+    private static int[] readInts(ReadableArray arr){
+        int[] ints = new int[arr.size()];
+        for(int i = 0; i < ints.length; i++){
+            ints[i] = (int)(long) arr.getDouble(i);
+        }
+        return ints;
+    }
+
+    /**
+     * Cancels the unfinished request with the given key(see getColorPalette), its queued restarts exit 
+     * without doing any work and running ones stop at their next iteration
+     * @param key   supersession key of the request
      */
     @ReactMethod
-    public void getColorPalette(String uri){
+    public void cancelColorPalette(String key){
+        PaletteRequest req = keyedRequests.remove(key);
+        if(req != null) req.cancel();
+    }
+
+    /**
+     * Starts a streaming session for a sequence of frames(camera preview, video), see PaletteSession. 
+     * Every frame starts from the last frame's palette and runs a few assignment passes, a "paletteGen" event 
+     * tagged with the session id is only sent when the palette changed noticeably
+     * @param opts      (can be null) palette options, same as getColorPalette(except the quantizer engines) plus: 
+     *                  maxDimension            longer side of the scaled down frames(default 160)
+     *                  warmIterations          max no of passes of a warm-started frame(default 3)
+     *                  sceneChangeThreshold    fraction of the pixels that must change colors for the frame 
+     *                                          to be clustered from scratch(default 0.3)
+     *                  minPaletteChange        min mean RGB distance from the last sent palette for a new one 
+     *                                          to be sent(default 6)
+     * @param promise   resolved with the session id(opts.requestId or a generated id)
+     */
+    @ReactMethod
+    public void startPaletteSession(ReadableMap opts, Promise promise){
         try{
-            //just get width and height without actually loading the bitmap into memory
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            InputStream in = c.getContentResolver().openInputStream(Uri.parse(uri));
-            BitmapFactory.decodeStream(in,null,options);
-            in.close();
-
-            //calculate down-scaled width/height
-            int newWidth,newHeight,maxVal = 500;
-            int width = options.outWidth; 
-            int height = options.outHeight;
-            float aspectRatio = width / (float) height;
-            
-
-            if(width > height){
-                newWidth = maxVal;
-                newHeight = Math.round(maxVal/aspectRatio);
+            PaletteOptions paletteOptions = parseOptions(opts);
+            if(opts == null || !opts.hasKey("maxDimension") || opts.isNull("maxDimension")){
+                paletteOptions.maxDimension = PaletteSession.MAX_DIMENSION;
+            }
+            String sessionId = readRequestId(opts);
+            PaletteRequest req = new PaletteRequest(sessionId, null, paletteOptions, readEncoding(opts), null, null);
+            PaletteSession old = sessions.put(sessionId, new PaletteSession(paletteOptions, req, clusterExecutor, emitExecutor, metrics));
+            if(old != null) old.close();
+            promise.resolve(sessionId);
+        }
+        catch(Exception e){
+            promise.reject("E_OPTIONS", e);
+        }
+    }
+
+    /**
+     * Decodes an image and adds it to a session as its next frame, replacing the frame that is waiting(if any). 
+     * Native frame sources should use submitSessionFrame instead
+     * @param sessionId     id of the session
+     * @param uri           frame uri
+     */
+    @ReactMethod
+    public void addSessionFrame(final String sessionId, final String uri){
+        decodeExecutor.execute(new Runnable(){
+            @Override
+            public void run(){
+                PaletteSession session = sessions.get(sessionId);
+                if(session == null) return;
+                try{
+                    PixelDecoder decoder = DECODER.get();
+                    int length = decoder.decode(c.getContentResolver(), Uri.parse(uri), session.maxDimension(), metrics);
+                    session.submitFrame(decoder.pixels, length);
+                }
+                catch(Exception e){
+                    log("SESSION FRAME ERROR: " + e.toString());
+                    metrics.errors.incrementAndGet();
+                    emitError(sessionId, uri, e);
+                }
             }
-            else{
-                newHeight = maxVal;
-                newWidth = Math.round(maxVal * aspectRatio);
+        });
+    }
+
+    /**
+     * Adds a frame to a session from native code(eg. a camera frame processor), returns right away
+     * @param sessionId     id of the session
+     * @param pixels        ARGB pixels of the frame, already scaled down, copied before this returns
+     * @param length        no of pixels
+     * @return boolean      false if there is no such session
+     */
+    public boolean submitSessionFrame(String sessionId, int[] pixels, int length){
+        PaletteSession session = sessions.get(sessionId);
+        if(session == null) return false;
+        session.submitFrame(pixels, length);
+        return true;
+    }
+
+    /**
+     * Stops a session, frames that are waiting are dropped
+     * @param sessionId     id of the session
+     */
+    @ReactMethod
+    public void stopPaletteSession(String sessionId){
+        PaletteSession session = sessions.remove(sessionId);
+        if(session != null) session.close();
+    }
+
+    /**
+     * Sends the timers and counters of the palette generation to JS, see MetricsRegistry
+     * @param promise   resolved with a map of the timers(decode, extract, sort, seed, assign, restart, emit, palette, frame) 
+     *                  to {count, meanMs, p50Ms, p95Ms, p99Ms, maxMs, perSecond}, the counters restarts, prunedRestarts, 
+     *                  cancelledRestarts, cancelledRequests, errors, droppedFrames, reseededFrames and unchangedFrames, 
+     *                  and the no of tasks waiting in decodeQueue and clusterQueue
+     */
+    @ReactMethod
+    public void getPaletteMetrics(Promise promise){
+        promise.resolve(metricsMap());
+    }
+
+    /**
+     * Sends the palette cache counters to JS
+     * @param promise   resolved with memoryHits, diskHits, misses, entries and bytes(of the memory tier)
+     */
+    @ReactMethod
+    public void getPaletteCacheStats(Promise promise){
+        WritableMap map = Arguments.createMap();
+        map.putDouble("memoryHits",paletteCache.getMemoryHits());
+        map.putDouble("diskHits",paletteCache.getDiskHits());
+        map.putDouble("misses",paletteCache.getMisses());
+        map.putInt("entries",paletteCache.getMemoryEntries());
+        map.putDouble("bytes",paletteCache.getMemoryBytes());
+        promise.resolve(map);
+    }
+
+    /**
+     * queues a request on the decode stage
+     * @param req   palette request
+     */
+    private void submitRequest(final PaletteRequest req){
+        if(req.key != null){
+            PaletteRequest old = keyedRequests.put(req.key, req);
+            if(old != null) old.cancel();
+        }
+        pendingRequests.add(req);
+        try{
+            decodeExecutor.execute(new PriorityExecutor.Task(req.options.priority, new Runnable(){
+                @Override
+                public void run(){
+                    decodeAndCluster(req);
+                }
+            }));
+        }
+        catch(RejectedExecutionException e){
+            //the module was destroyed
+            req.abort(MODULE_DESTROYED);
+        }
+    }
+
+    /**
+     * Decodes the image scaled down to maxDimension, and passes its pixels to GenColorPalette. 
+     * Runs on the decode threads, waits for a free in-flight slot before decoding so that 
+     * only a few decoded images wait for the clustering threads at a time
+     * @param req   palette request
+     */
+    private void decodeAndCluster(PaletteRequest req){
+        //superseded while it was queued
+        if(req.cancelled){
+            req.onFinish();
+            return;
+        }
+        req.startNanos = System.nanoTime();
+        String uri = req.uri;
+        PaletteOptions paletteOptions = req.options;
+        try{
+            //if the image has a stable key, a cached palette is sent without decoding the image
+            String cacheKey = null;
+            if(paletteOptions.cache){
+                String imageKey = imageKey(uri);
+                if(imageKey != null){
+                    cacheKey = imageKey + "|" + paletteOptions.cacheKey();
+                    if(sendCached(req, cacheKey)) return;
+                }
             }
-            //calculate ratio by which image will be downscaled
-            int downScale = calculateInSampleSize(width, height, newWidth, newHeight);
-
-            //load downscaled bitmap
-            options.inSampleSize = downScale;
-            options.inJustDecodeBounds = false;
-            options.inPreferredConfig=Bitmap.Config.ARGB_8888;
-            in = c.getContentResolver().openInputStream(Uri.parse(uri));
-            Bitmap resized = BitmapFactory.decodeStream(in,null,options);
-            in.close();
-            
-            newWidth = resized.getWidth();
-            newHeight = resized.getHeight();
-            int[] pixels = new int[newWidth * newHeight];
-            resized.getPixels(pixels,0,newWidth,0,0,newWidth,newHeight);
-            
-            //generate palette
-            GenColorPalette g = new GenColorPalette(pixels, this);
+
+            inFlight.acquire();
+            req.holdsSlot = true;
+            if(req.cancelled){
+                req.onFinish();
+                return;
+            }
+
+            //decode into this thread's buffer, GenColorPalette doesn't keep it
+            PixelDecoder decoder = DECODER.get();
+            int length = decoder.decode(c.getContentResolver(), Uri.parse(uri), paletteOptions.maxDimension, metrics);
+            int[] pixels = decoder.pixels;
+
+            //otherwise the image is identified by its pixels
+            if(paletteOptions.cache && cacheKey == null){
+                cacheKey = "px:" + PaletteCache.hashPixels(pixels, length) + "|" + paletteOptions.cacheKey();
+                if(sendCached(req, cacheKey)) return;
+            }
+            req.cacheKey = cacheKey;
+
+            //generate palette, the request is finished(and its slot released) in onFinish
+            GenColorPalette g = new GenColorPalette(pixels, length, paletteOptions, req, clusterExecutor, assignPool, emitExecutor, metrics);
+            //a cancel either sees the job or is seen here
+            req.gen = g;
+            if(req.cancelled) g.cancel();
             g.genPalette();
         }
         catch(IOException io){
             log("IO ERROR: " + io.toString());
-            this.onError(io);
+            req.onError(io);
+            req.onFinish();
+        }
+        catch(InterruptedException ie){
+            //the module is being destroyed
+            req.onFinish();
         }
         catch(Exception e){
             log("GENCOLORPALETTE ERROR: " + e.toString());
-            this.onError(e);
+            req.onError(e);
+            req.onFinish();
         }
     }
 
-    /*Interface Methods - Are called from the threads, and send data to JS */
+    /*Event Methods - Are called from the threads, and send data to JS */
 
     /**
      * Called by the worker threads after a palette has been generated
+     * @param req           the request, its id, uri and encoding are sent with the palette
      * @param palette       array containing the colors generated from the image
      * @param clusterSizes  array containing size of each cluster   
-     * @param Final         if true, this is the lowest-cost solution
+     * @param Final         if true, this is the lowest-cost solution. 
+     *                      The module's metrics are sent with it if the request asked for them
      */
-    public void onPaletteGen(int[] palette, int[] clusterSizes, boolean Final){
-        WritableArray paletteArr = new WritableNativeArray();
-        for(int i = 0; i < palette.length; i++){
-            WritableMap map = Arguments.createMap();
-            map.putInt("r",Color.red(palette[i]));
-            map.putInt("g",Color.green(palette[i]));
-            map.putInt("b",Color.blue(palette[i]));
-            paletteArr.pushMap(map);
-        }
-
-        WritableArray sizeArr = new WritableNativeArray();
-        for(int i = 0; i < clusterSizes.length; i++){
-            sizeArr.pushInt(clusterSizes[i]);
-        }
-
-        WritableMap resMap = Arguments.createMap();
-        resMap.putArray("palette",paletteArr);
-        resMap.putArray("sizes",sizeArr);
+    private void emitPalette(PaletteRequest req, int[] palette, int[] clusterSizes, boolean Final){
+        long start = System.nanoTime();
+        WritableMap resMap = paletteMap(req.requestId, req.uri, palette, clusterSizes, req.encoding);
         resMap.putBoolean("final",Final);
+        if(Final && req.options.metrics) resMap.putMap("metrics", metricsMap());
 
         ((ReactContext)c).getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit("paletteGen", resMap);
+        metrics.emit.since(start);
+    }
+
+    /**
+     * Called by the worker threads after every clustering run if stats were asked for
+     * @param requestId     id of the request
+     * @param stats         stats of the run
+     */
+    private void emitStats(String requestId, RunStats stats){
+        WritableMap map = Arguments.createMap();
+        map.putString("requestId",requestId);
+        map.putInt("run",stats.run);
+        map.putInt("iterations",stats.iterations);
+        map.putDouble("timeMs",stats.timeNanos / 1e6);
+        if(stats.cost != Double.MAX_VALUE) map.putDouble("cost",stats.cost);
+        map.putBoolean("converged",stats.converged);
+        map.putBoolean("pruned",stats.pruned);
+        map.putBoolean("cancelled",stats.cancelled);
+
+        ((ReactContext)c).getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit("paletteStats", map);
+    }
+
+    /**
+     * Sent once a cancelled request is finished without a final palette
+     * @param requestId     id of the request
+     * @param uri           image uri
+     */
+    private void emitCancelled(String requestId, String uri){
+        WritableMap map = Arguments.createMap();
+        map.putString("requestId",requestId);
+        map.putString("uri",uri);
+
+        ((ReactContext)c).getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit("paletteCancelled", map);
     }
 
     /**
      * Called by the worker threads in case of any Exception
-     * @param e     the exception thrown
+     * @param requestId     id of the request(can be null)
+     * @param uri           image uri
+     * @param e             the exception thrown
      */
-    public void onError(Exception e){
+    private void emitError(String requestId, String uri, Exception e){
         WritableMap map = Arguments.createMap();
+        map.putString("requestId",requestId);
+        map.putString("uri",uri);
         map.putString("msg",e.toString());
 
         ((ReactContext)c).getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit("error", map);
     }
 
     /**
-     * calculate the "ratio" by which image is scaled down by
-     * @see https://developer.android.com/topic/performance/graphics/load-bitmap
-     * @param imgWidth      image width
-     * @param imgHeight     image height
-     * @param reqWidth      downscaled image width
-     * @param reqHeight     downscaled image height
-     * @return int          ratio by which image is scaled down
+     * @return WritableMap  snapshot of the metrics, timers in ms
      */
-    private int calculateInSampleSize(int imgWidth, int imgHeight, int reqWidth, int reqHeight) {
-        int inSampleSize = 1;
+    private WritableMap metricsMap(){
+        WritableMap map = Arguments.createMap();
+        for(MetricsRegistry.Timer timer : metrics.timers()){
+            MetricsRegistry.Snapshot snap = timer.snapshot();
+            WritableMap t = Arguments.createMap();
+            t.putDouble("count",snap.count);
+            t.putDouble("meanMs",snap.meanNanos / 1e6);
+            t.putDouble("p50Ms",snap.p50Nanos / 1e6);
+            t.putDouble("p95Ms",snap.p95Nanos / 1e6);
+            t.putDouble("p99Ms",snap.p99Nanos / 1e6);
+            t.putDouble("maxMs",snap.maxNanos / 1e6);
+            t.putDouble("perSecond",snap.perSecond);
+            map.putMap(timer.name,t);
+        }
+        map.putDouble("restarts",metrics.restarts.get());
+        map.putDouble("prunedRestarts",metrics.prunedRestarts.get());
+        map.putDouble("cancelledRestarts",metrics.cancelledRestarts.get());
+        map.putDouble("cancelledRequests",metrics.cancelledRequests.get());
+        map.putDouble("errors",metrics.errors.get());
+        map.putDouble("droppedFrames",metrics.droppedFrames.get());
+        map.putDouble("reseededFrames",metrics.reseededFrames.get());
+        map.putDouble("unchangedFrames",metrics.unchangedFrames.get());
+        map.putInt("decodeQueue",decodeExecutor.getQueue().size());
+        map.putInt("clusterQueue",clusterExecutor.getQueue().size());
+        return map;
+    }
 
-        if (imgHeight > reqHeight || imgWidth > reqWidth) {
+    /**
+     * builds the map that is sent to JS for a palette
+     * @param requestId     id of the request
+     * @param uri           image uri
+     * @param palette       palette colors
+     * @param clusterSizes  size of each cluster
+     * @param encoding      how the palette is encoded
+     * @return WritableMap  {requestId, uri, encoding} and the palette in the encoding(see PaletteEncoding)
+     */
+    private static WritableMap paletteMap(String requestId, String uri, int[] palette, int[] clusterSizes, PaletteEncoding encoding){
+        WritableMap resMap = Arguments.createMap();
+        resMap.putString("requestId",requestId);
+        resMap.putString("uri",uri);
+        resMap.putString("encoding",encoding.name().toLowerCase(Locale.ROOT));
+        encoding.write(resMap, palette, clusterSizes);
+        return resMap;
+    }
+
+    /**
+     * reads the palette options sent from JS, missing keys keep their default values
+     * @param map               options map from JS(can be null)
+     * @return PaletteOptions   options for GenColorPalette
+     */
+    private static PaletteOptions parseOptions(ReadableMap map){
+        PaletteOptions options = new PaletteOptions();
+        if(map == null) return options;
 
-            final int halfHeight = imgHeight / 2;
-            final int halfWidth = imgWidth / 2;
+        if(map.hasKey("k") && !map.isNull("k")) options.clusters = map.getInt("k");
+        if(map.hasKey("restarts") && !map.isNull("restarts")) options.restarts = map.getInt("restarts");
+        if(map.hasKey("engine") && !map.isNull("engine")) options.engine = ClusterEngine.fromName(map.getString("engine"));
+        //CLARA's work barely grows with the image, so it defaults to a larger image
+        if(options.engine == ClusterEngine.CLARA) options.maxDimension = ClusterEngine.CLARA_MAX_DIMENSION;
+        if(map.hasKey("seedWith") && !map.isNull("seedWith")) options.seedWith = ClusterEngine.fromName(map.getString("seedWith"));
+        if(map.hasKey("samplePixels") && !map.isNull("samplePixels")) options.samplePixels = map.getInt("samplePixels");
+        if(map.hasKey("swapCandidates") && !map.isNull("swapCandidates")) options.swapCandidates = map.getInt("swapCandidates");
+        if(map.hasKey("maxDimension") && !map.isNull("maxDimension")) options.maxDimension = map.getInt("maxDimension");
+        //JS numbers are doubles, so the seed is read as a double
+        if(map.hasKey("seed") && !map.isNull("seed")) options.seed = (long) map.getDouble("seed");
+        if(map.hasKey("distance") && !map.isNull("distance")) options.distance = ColorDistance.fromName(map.getString("distance"));
+        if(map.hasKey("compress") && !map.isNull("compress")) options.compress = map.getBoolean("compress");
+        if(map.hasKey("quantizeBits") && !map.isNull("quantizeBits")) options.quantizeBits = map.getInt("quantizeBits");
+        if(map.hasKey("maxIterations") && !map.isNull("maxIterations")) options.maxIterations = map.getInt("maxIterations");
+        if(map.hasKey("minCostDelta") && !map.isNull("minCostDelta")) options.minCostDelta = map.getDouble("minCostDelta");
+        if(map.hasKey("minMovedFraction") && !map.isNull("minMovedFraction")) options.minMovedFraction = map.getDouble("minMovedFraction");
+        if(map.hasKey("pruneRatio") && !map.isNull("pruneRatio")) options.pruneRatio = map.getDouble("pruneRatio");
+        if(map.hasKey("pruneAfter") && !map.isNull("pruneAfter")) options.pruneAfter = map.getInt("pruneAfter");
+        if(map.hasKey("priority") && !map.isNull("priority")) options.priority = map.getInt("priority");
+        if(map.hasKey("reportStats") && !map.isNull("reportStats")) options.reportStats = map.getBoolean("reportStats");
+        if(map.hasKey("parallelAssign") && !map.isNull("parallelAssign")) options.parallelAssign = map.getBoolean("parallelAssign");
+        if(map.hasKey("sortedAssign") && !map.isNull("sortedAssign")) options.sortedAssign = map.getBoolean("sortedAssign");
+        if(map.hasKey("cache") && !map.isNull("cache")) options.cache = map.getBoolean("cache");
+        if(map.hasKey("metrics") && !map.isNull("metrics")) options.metrics = map.getBoolean("metrics");
+        if(map.hasKey("progressive") && !map.isNull("progressive")) options.progressive = map.getBoolean("progressive");
+        if(map.hasKey("previewPixels") && !map.isNull("previewPixels")) options.previewPixels = map.getInt("previewPixels");
+        if(map.hasKey("maxEmitsPerSecond") && !map.isNull("maxEmitsPerSecond")) options.maxEmitsPerSecond = map.getInt("maxEmitsPerSecond");
+        if(map.hasKey("warmIterations") && !map.isNull("warmIterations")) options.warmIterations = map.getInt("warmIterations");
+        if(map.hasKey("sceneChangeThreshold") && !map.isNull("sceneChangeThreshold")) options.sceneChangeThreshold = map.getDouble("sceneChangeThreshold");
+        if(map.hasKey("minPaletteChange") && !map.isNull("minPaletteChange")) options.minPaletteChange = map.getDouble("minPaletteChange");
+        options.validate();
+        return options;
+    }
 
-            // Calculate the largest inSampleSize value that is a power of 2 and keeps both
-            // height and width larger than the requested height and width.
-            while ((halfHeight / inSampleSize) >= reqHeight
-                    && (halfWidth / inSampleSize) >= reqWidth) {
-                inSampleSize *= 2;
+    /**
+     * sends a cached palette to JS as the final palette, and finishes the request
+     * @param req       palette request
+     * @param cacheKey  palette cache key
+     * @return boolean  true if the palette was cached
+     */
+    private boolean sendCached(PaletteRequest req, String cacheKey){
+        PaletteCache.Entry cached = paletteCache.get(cacheKey);
+        if(cached == null) return false;
+        req.onPaletteGen(cached.palette, cached.sizes, true);
+        req.onFinish();
+        return true;
+    }
+
+    /**
+     * @param opts      options map from JS(can be null)
+     * @return PaletteEncoding  encoding from the options, MAPS if it isn't set
+     */
+    private static PaletteEncoding readEncoding(ReadableMap opts){
+        if(opts != null && opts.hasKey("encoding") && !opts.isNull("encoding")) return PaletteEncoding.fromName(opts.getString("encoding"));
+        return PaletteEncoding.MAPS;
+    }
+
+    /**
+     * @param opts      options map from JS(can be null)
+     * @return String   requestId from the options, or a new id
+     */
+    private String readRequestId(ReadableMap opts){
+        if(opts != null && opts.hasKey("requestId") && !opts.isNull("requestId")) return opts.getString("requestId");
+        return "req-" + requestCounter.incrementAndGet();
+    }
+
+    /**
+     * @return boolean  true if the final palette should be added to the palette index
+     */
+    private static boolean readIndex(ReadableMap opts){
+        return opts != null && opts.hasKey("index") && !opts.isNull("index") && opts.getBoolean("index");
+    }
+
+    /**
+     * @return String   supersession key of the request, null if it has none
+     */
+    private static String readKey(ReadableMap opts){
+        if(opts != null && opts.hasKey("key") && !opts.isNull("key")) return opts.getString("key");
+        return null;
+    }
+
+    /**
+     * builds a key for an image from its uri, size and last modified time, so an edited image gets a new key
+     * @param uri       image uri
+     * @return String   image key, or null if the size or last modified time aren't available
+     */
+    private String imageKey(String uri){
+        Uri u = Uri.parse(uri);
+        long size = -1, modified = -1;
+        if("file".equals(u.getScheme())){
+            File f = new File(u.getPath());
+            if(!f.exists()) return null;
+            size = f.length();
+            modified = f.lastModified();
+        }
+        else{
+            Cursor cursor = null;
+            try{
+                cursor = c.getContentResolver().query(u, null, null, null, null);
+                if(cursor != null && cursor.moveToFirst()){
+                    size = readLong(cursor, OpenableColumns.SIZE);
+                    modified = readLong(cursor, DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                    if(modified < 0) modified = readLong(cursor, MediaStore.MediaColumns.DATE_MODIFIED);
+                }
+            }
+            catch(Exception e){
+                log("CACHE KEY ERROR: " + e.toString());
+                return null;
+            }
+            finally{
+                if(cursor != null) cursor.close();
+            }
+        }
+        if(size < 0 || modified < 0) return null;
+        return uri + "|" + size + "|" + modified;
+    }
+
+    /**
+     * @param cursor    cursor at a row
+     * @param column    column name
+     * @return long     value of the column, -1 if the column doesn't exist or is null
+     */
+    private static long readLong(Cursor cursor, String column){
+        int idx = cursor.getColumnIndex(column);
+        if(idx < 0 || cursor.isNull(idx)) return -1;
+        return cursor.getLong(idx);
+    }
+
+    /**
+     * A single image of a getColorPalette/getColorPalettes call. Sends the palettes of the image to JS 
+     * tagged with its request id, adds the final palette to the palette cache, and tells its batch(if any) 
+     * when it is done
+     */
+    private class PaletteRequest implements PaletteCallback{
+        final String requestId;
+        final String uri;
+        final PaletteOptions options;
+        final Batch batch;
+        final PaletteEncoding encoding;
+        //supersession key, null if the request can't be superseded
+        final String key;
+        //add the final palette to the palette index under the uri
+        volatile boolean index = false;
+        //set once the image is decoded, used to cancel the job
+        volatile GenColorPalette gen;
+        volatile boolean cancelled = false;
+        //set once the image is decoded, null if the palette shouldn't be cached
+        volatile String cacheKey;
+        //true once the request has an in-flight slot
+        volatile boolean holdsSlot = false;
+        //System.nanoTime() when the request started
+        volatile long startNanos;
+
+        //final palette, or the last error
+        volatile int[] palette, sizes;
+        volatile String error;
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+
+        PaletteRequest(String requestId, String uri, PaletteOptions options, PaletteEncoding encoding, Batch batch, String key){
+            this.requestId = requestId;
+            this.uri = uri;
+            this.options = options;
+            this.encoding = encoding;
+            this.batch = batch;
+            this.key = key;
+        }
+
+        /**
+         * cancels the request, it finishes without a final palette unless it is already finished
+         */
+        void cancel(){
+            if(finished.get() || cancelled) return;
+            cancelled = true;
+            metrics.cancelledRequests.incrementAndGet();
+            GenColorPalette g = gen;
+            if(g != null) g.cancel();
+        }
+
+        @Override
+        public void onPaletteGen(int[] palette, int[] clusterSizes, boolean Final){
+            if(Final){
+                //the arrays are never changed after they are passed
+                this.palette = palette;
+                this.sizes = clusterSizes;
+                if(cacheKey != null) paletteCache.put(cacheKey, palette, clusterSizes);
+                if(index && uri != null) indexFinalPalette(uri, palette, clusterSizes);
+                metrics.palette.since(startNanos);
+            }
+            emitPalette(this, palette, clusterSizes, Final);
+        }
+
+        @Override
+        public void onError(Exception e){
+            error = e.toString();
+            metrics.errors.incrementAndGet();
+            emitError(requestId, uri, e);
+        }
+
+        @Override
+        public void onRunStats(RunStats stats){
+            emitStats(requestId, stats);
+        }
+
+        /**
+         * finishes the request without a result, for requests the module drops. Its batch promise is rejected, 
+         * no error event is sent as the JS side is going away
+         * @param reason    error of the request and the batch
+         */
+        void abort(String reason){
+            if(finished.get()) return;
+            error = reason;
+            GenColorPalette g = gen;
+            if(g != null) g.cancel();
+            if(batch != null) batch.reject(reason);
+            onFinish();
+        }
+
+        @Override
+        public void onFinish(){
+            if(!finished.compareAndSet(false, true)) return;
+            pendingRequests.remove(this);
+            if(holdsSlot) inFlight.release();
+            if(key != null) keyedRequests.remove(key, this);
+            if(cancelled && palette == null) emitCancelled(requestId, uri);
+            if(batch != null) batch.itemDone();
+        }
+
+        /**
+         * @return WritableMap  result of the request for the batch promise
+         */
+        WritableMap toResult(){
+            if(palette != null) return paletteMap(requestId, uri, palette, sizes, encoding);
+            WritableMap map = Arguments.createMap();
+            map.putString("requestId",requestId);
+            map.putString("uri",uri);
+            map.putString("error",error != null ? error : "cancelled");
+            return map;
+        }
+    }
+
+    /**
+     * Requests of a getColorPalettes call, resolves the promise once all of them are finished 
+     * (or rejects it if one of them is dropped by the module)
+     */
+    private static class Batch{
+        final PaletteRequest[] requests;
+        private final Promise promise;
+        private final AtomicInteger remaining;
+        //the promise is settled only once
+        private final AtomicBoolean settled = new AtomicBoolean(false);
+
+        Batch(int size, Promise promise){
+            this.requests = new PaletteRequest[size];
+            this.promise = promise;
+            this.remaining = new AtomicInteger(size);
+        }
+
+        void itemDone(){
+            if(remaining.decrementAndGet() == 0) resolve();
+        }
+
+        void reject(String reason){
+            if(settled.compareAndSet(false, true)) promise.reject("E_DESTROYED", reason);
+        }
+
+        void resolve(){
+            if(!settled.compareAndSet(false, true)) return;
+            WritableArray results = Arguments.createArray();
+            for(PaletteRequest req : requests){
+                results.pushMap(req.toResult());
             }
+            promise.resolve(results);
         }
+    }
 
-        return inSampleSize;
+    /**
+     * creates a pool with an unbounded FIFO queue, used for the emitter thread(a single thread runs the tasks in order)
+     * @param threads   no of threads
+     * @param name      prefix of the thread names
+     * @return ThreadPoolExecutor   executor whose threads exit after 30s without work
+     */
+    private static ThreadPoolExecutor newQueueExecutor(int threads, String name){
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), daemonThreads(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @param name      prefix of the thread names
+     * @return ThreadFactory    creates daemon threads named "<name>-<n>"
+     */
+    private static ThreadFactory daemonThreads(final String name){
+        return new ThreadFactory(){
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r){
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
     }
 
     /**
@@ -0,0 +1,325 @@
+package com.colorpaletteandroid;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of generated palettes, with an in-memory tier and an on-disk tier. 
+ * Keys are built from the image(uri + size + last modified time, or a hash of the pixels) 
+ * and the options that change the palette(see PaletteOptions.cacheKey). 
+ * Both tiers are bounded by no of entries and bytes, the least recently used entries are evicted first.
+ */
+public class PaletteCache {
+
+    /**
+     * A cached palette
+     */
+    public static class Entry {
+        final int[] palette;
+        final int[] sizes;
+
+        Entry(int[] palette, int[] sizes){
+            this.palette = palette;
+            this.sizes = sizes;
+        }
+
+        //rough no of bytes the entry(and its key) take in memory
+        long bytes(String key){
+            return 64 + 2L * key.length() + 4L * (palette.length + sizes.length);
+        }
+    }
+
+    //version of the disk format, files with another version are ignored
+    private static final int DISK_VERSION = 1;
+    //palette files of the disk tier, the .tmp files other threads are still writing aren't part of it
+    private static final FileFilter PALETTE_FILES = new FileFilter(){
+        @Override
+        public boolean accept(File f){
+            return f.getName().endsWith(".pal");
+        }
+    };
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long memoryBytes = 0;
+
+    //null if there's no disk tier
+    private final File dir;
+    private final int maxDiskEntries;
+    private final long maxDiskBytes;
+    //no of files and bytes in the disk tier, seeded from dir once and updated on every write/delete, guarded by this
+    private int diskEntries = 0;
+    private long diskBytes = 0;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxEntries        max no of palettes kept in memory
+     * @param maxBytes          max no of bytes kept in memory
+     * @param dir               directory of the disk tier, null for a memory only cache
+     * @param maxDiskEntries    max no of palettes kept on disk
+     * @param maxDiskBytes      max no of bytes kept on disk
+     */
+    public PaletteCache(int maxEntries, long maxBytes, File dir, int maxDiskEntries, long maxDiskBytes){
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.dir = dir;
+        this.maxDiskEntries = maxDiskEntries;
+        this.maxDiskBytes = maxDiskBytes;
+        if(dir != null){
+            dir.mkdirs();
+            File[] files = dir.listFiles(PALETTE_FILES);
+            if(files != null){
+                diskEntries = files.length;
+                for(File f : files) diskBytes += f.length();
+            }
+        }
+    }
+
+    /**
+     * looks for a palette in memory, and then on disk(a disk hit is moved into memory)
+     * @param key       cache key
+     * @return Entry    cached palette, or null if it isn't cached
+     */
+    public Entry get(String key){
+        synchronized(memory){
+            Entry e = memory.get(key);
+            if(e != null){
+                memoryHits.incrementAndGet();
+                return e;
+            }
+        }
+
+        Entry e = readDisk(key);
+        if(e != null){
+            diskHits.incrementAndGet();
+            putMemory(key, e);
+            return e;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * adds a palette to both tiers
+     * @param key       cache key
+     * @param palette   palette colors(copied)
+     * @param sizes     cluster sizes(copied)
+     */
+    public void put(String key, int[] palette, int[] sizes){
+        Entry e = new Entry(Arrays.copyOf(palette, palette.length), Arrays.copyOf(sizes, sizes.length));
+        putMemory(key, e);
+        writeDisk(key, e);
+    }
+
+    public long getMemoryHits(){
+        return memoryHits.get();
+    }
+
+    public long getDiskHits(){
+        return diskHits.get();
+    }
+
+    public long getMisses(){
+        return misses.get();
+    }
+
+    public int getMemoryEntries(){
+        synchronized(memory){
+            return memory.size();
+        }
+    }
+
+    public long getMemoryBytes(){
+        synchronized(memory){
+            return memoryBytes;
+        }
+    }
+
+    /**
+     * fast 64-bit hash(FNV-1a over the ints) of a pixel buffer, used as the image key 
+     * when the image has no size/last modified time
+     * @param pixels    pixel buffer
+     * @param length    no of pixels to hash
+     * @return String   hash as a hex string
+     */
+    public static String hashPixels(int[] pixels, int length){
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < length; i++){
+            h ^= pixels[i];
+            h *= 0x100000001b3L;
+        }
+        h ^= length;
+        return Long.toHexString(h);
+    }
+
+    private void putMemory(String key, Entry e){
+        synchronized(memory){
+            Entry old = memory.put(key, e);
+            if(old != null) memoryBytes -= old.bytes(key);
+            memoryBytes += e.bytes(key);
+
+            //eldest(least recently used) entries are first
+            Iterator<Map.Entry<String, Entry>> it = memory.entrySet().iterator();
+            while((memory.size() > maxEntries || memoryBytes > maxBytes) && it.hasNext()){
+                Map.Entry<String, Entry> eldest = it.next();
+                memoryBytes -= eldest.getValue().bytes(eldest.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @param key   cache key
+     * @return File file of the key in the disk tier, named after the hash of the key
+     */
+    private File diskFile(String key){
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < key.length(); i++){
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return new File(dir, Long.toHexString(h) + ".pal");
+    }
+
+    private Entry readDisk(String key){
+        if(dir == null) return null;
+        File f = diskFile(key);
+        if(!f.exists()) return null;
+
+        DataInputStream in = null;
+        try{
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            //the key is stored as well, in case 2 keys have the same hash
+            if(in.readInt() != DISK_VERSION || !key.equals(in.readUTF())) return null;
+            int n = in.readInt();
+            int[] palette = new int[n];
+            int[] sizes = new int[n];
+            for(int i = 0; i < n; i++) palette[i] = in.readInt();
+            for(int i = 0; i < n; i++) sizes[i] = in.readInt();
+            //used as the LRU order of the disk tier
+            f.setLastModified(System.currentTimeMillis());
+            return new Entry(palette, sizes);
+        }
+        catch(IOException e){
+            deleteDisk(f);
+            return null;
+        }
+        finally{
+            closeQuietly(in);
+        }
+    }
+
+    private void writeDisk(String key, Entry e){
+        if(dir == null) return;
+        File f = diskFile(key);
+        File tmp = new File(dir, f.getName() + ".tmp" + Thread.currentThread().getId());
+        DataOutputStream out = null;
+        long length;
+        try{
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(DISK_VERSION);
+            out.writeUTF(key);
+            out.writeInt(e.palette.length);
+            for(int c : e.palette) out.writeInt(c);
+            for(int s : e.sizes) out.writeInt(s);
+            length = out.size();
+            out.close();
+            out = null;
+        }
+        catch(IOException io){
+            tmp.delete();
+            return;
+        }
+        finally{
+            closeQuietly(out);
+        }
+
+        synchronized(this){
+            //the file of the key is replaced if it's already there
+            long old = f.exists() ? f.length() : -1;
+            if(!tmp.renameTo(f)){
+                tmp.delete();
+                return;
+            }
+            if(old < 0) diskEntries++;
+            else diskBytes -= old;
+            diskBytes += length;
+            //the directory is only listed when the tracked totals are over the limits
+            if(diskEntries > maxDiskEntries || diskBytes > maxDiskBytes) trimDisk();
+        }
+    }
+
+    private synchronized void deleteDisk(File f){
+        long length = f.length();
+        if(f.delete()){
+            diskEntries--;
+            diskBytes -= length;
+        }
+    }
+
+    /**
+     * deletes the least recently used files until the disk tier is within its limits, 
+     * the tracked totals are reset from the listing(in case files were added/removed outside the cache)
+     */
+    private synchronized void trimDisk(){
+        File[] files = dir.listFiles(PALETTE_FILES);
+        if(files == null) return;
+
+        long total = 0;
+        for(File f : files) total += f.length();
+        diskEntries = files.length;
+        diskBytes = total;
+        if(files.length <= maxDiskEntries && total <= maxDiskBytes) return;
+
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for(int i = 0; i < files.length; i++){
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>(){
+            @Override
+            public int compare(Integer a, Integer b){
+                return Long.compare(modified[a], modified[b]);
+            }
+        });
+
+        int count = files.length;
+        for(int i = 0; i < order.length && (count > maxDiskEntries || total > maxDiskBytes); i++){
+            File f = files[order[i]];
+            long len = f.length();
+            if(f.delete()){
+                count--;
+                total -= len;
+            }
+        }
+        diskEntries = count;
+        diskBytes = total;
+    }
+
+    private static void closeQuietly(Closeable c){
+        if(c == null) return;
+        try{
+            c.close();
+        }
+        catch(IOException ignored){}
+    }
+}
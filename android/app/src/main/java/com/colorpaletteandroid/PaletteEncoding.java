@@ -0,0 +1,128 @@
+package com.colorpaletteandroid;
+
+import java.util.Locale;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeArray;
+
+import android.graphics.Color;
+import android.util.Base64;
+
+/**
+ * How a palette is sent to JS. Every encoding includes the share(% of the pixels) and the hex string of every color,
+ * computed once here. MAPS is the original format, PACKED and BASE64 send the whole palette as a single value
+ * instead of a map per color, which is a lot less to marshal for batches and progressive updates.
+ */
+enum PaletteEncoding {
+    //palette: [{r, g, b, hex: "#rrggbb", share: %}], sizes: [size]
+    MAPS,
+    //colors: [argb, size, share in hundredths of a %, ...] flat array with 3 ints per color(argb is signed, >>> 0 in JS),
+    //hex: "rrggbbrrggbb..." 6 chars per color
+    PACKED,
+    //data: base64 of the PACKED ints as little endian int32s, hex: same as PACKED
+    BASE64;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * @param name      name of the encoding("maps", "packed", "base64"), case insensitive
+     * @return PaletteEncoding  the encoding, MAPS if name is null
+     * @throws IllegalArgumentException if the name is not a known encoding
+     */
+    static PaletteEncoding fromName(String name){
+        if(name == null) return MAPS;
+        switch(name.toLowerCase(Locale.ROOT)){
+            case "maps": return MAPS;
+            case "packed": return PACKED;
+            case "base64": return BASE64;
+            default: throw new IllegalArgumentException("Unknown encoding: " + name);
+        }
+    }
+
+    /**
+     * adds the palette to the map in this encoding
+     * @param map           map sent to JS
+     * @param palette       palette colors
+     * @param clusterSizes  size of each cluster
+     */
+    void write(WritableMap map, int[] palette, int[] clusterSizes){
+        long total = 0;
+        for(int size : clusterSizes){
+            total += size;
+        }
+        //share of every color in hundredths of a %
+        int[] shares = new int[palette.length];
+        for(int i = 0; i < palette.length; i++){
+            shares[i] = total == 0 ? 0 : (int)Math.round(clusterSizes[i] * 10000.0 / total);
+        }
+
+        switch(this){
+            case MAPS: {
+                WritableArray paletteArr = new WritableNativeArray();
+                for(int i = 0; i < palette.length; i++){
+                    WritableMap colorMap = Arguments.createMap();
+                    colorMap.putInt("r",Color.red(palette[i]));
+                    colorMap.putInt("g",Color.green(palette[i]));
+                    colorMap.putInt("b",Color.blue(palette[i]));
+                    colorMap.putString("hex","#" + hex(palette, i, i + 1));
+                    colorMap.putDouble("share",shares[i] / 100.0);
+                    paletteArr.pushMap(colorMap);
+                }
+
+                WritableArray sizeArr = new WritableNativeArray();
+                for(int i = 0; i < clusterSizes.length; i++){
+                    sizeArr.pushInt(clusterSizes[i]);
+                }
+                map.putArray("palette",paletteArr);
+                map.putArray("sizes",sizeArr);
+                break;
+            }
+            case PACKED: {
+                WritableArray colors = new WritableNativeArray();
+                for(int i = 0; i < palette.length; i++){
+                    colors.pushInt(palette[i]);
+                    colors.pushInt(clusterSizes[i]);
+                    colors.pushInt(shares[i]);
+                }
+                map.putArray("colors",colors);
+                map.putString("hex",hex(palette, 0, palette.length));
+                break;
+            }
+            case BASE64: {
+                byte[] bytes = new byte[palette.length * 12];
+                int p = 0;
+                for(int i = 0; i < palette.length; i++){
+                    p = putInt(bytes, p, palette[i]);
+                    p = putInt(bytes, p, clusterSizes[i]);
+                    p = putInt(bytes, p, shares[i]);
+                }
+                map.putString("data",Base64.encodeToString(bytes, Base64.NO_WRAP));
+                map.putString("hex",hex(palette, 0, palette.length));
+                break;
+            }
+        }
+    }
+
+    //rrggbb of the colors in [from, to), concatenated
+    private static String hex(int[] palette, int from, int to){
+        char[] chars = new char[(to - from) * 6];
+        int p = 0;
+        for(int i = from; i < to; i++){
+            for(int shift = 20; shift >= 0; shift -= 4){
+                chars[p++] = HEX_DIGITS[(palette[i] >> shift) & 0xF];
+            }
+        }
+        return new String(chars);
+    }
+
+    //writes a little endian int32, returns the next position
+    private static int putInt(byte[] bytes, int p, int v){
+        bytes[p] = (byte) v;
+        bytes[p + 1] = (byte)(v >> 8);
+        bytes[p + 2] = (byte)(v >> 16);
+        bytes[p + 3] = (byte)(v >> 24);
+        return p + 4;
+    }
+}
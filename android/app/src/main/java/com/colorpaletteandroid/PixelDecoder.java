@@ -0,0 +1,187 @@
+package com.colorpaletteandroid;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageDecoder;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Size;
+
+/**
+ * Decodes an image into a pixel buffer whose longer side is at most maxDimension, reading the image stream once.
+ * On API 28+ ImageDecoder scales the image while decoding it, older versions decode bounds and pixels from
+ * the same buffered stream. The bitmap is recycled as soon as its pixels are copied, and the buffer is
+ * reused by the next decode, so a decoder must only be used by a single thread.
+ */
+class PixelDecoder {
+    //size of the stream buffer, and how much of the image BitmapFactory may read to find its bounds
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MARK_LIMIT = 1024 * 1024;
+
+    //decoded pixels, only the first `length` returned by decode are valid
+    int[] pixels = new int[0];
+    //one row of the bitmap, used when the bitmap is larger than the buffer
+    private int[] row = new int[0];
+
+    /**
+     * @param resolver      content resolver to open the image with
+     * @param uri           image uri
+     * @param maxDimension  longer side of the decoded image, smaller images aren't scaled up
+     * @param metrics       decode and extract times are recorded in it
+     * @return int          no of pixels written to the buffer
+     * @throws IOException  if the image can't be read or decoded
+     */
+    int decode(ContentResolver resolver, Uri uri, int maxDimension, MetricsRegistry metrics) throws IOException{
+        long start = System.nanoTime();
+        Bitmap bitmap = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P
+                ? decodeScaled(resolver, uri, maxDimension)
+                : decodeSampled(resolver, uri, maxDimension);
+        if(bitmap == null) throw new IOException("Could not decode " + uri);
+        metrics.decode.since(start);
+        try{
+            start = System.nanoTime();
+            int length = copyPixels(bitmap, maxDimension);
+            metrics.extract.since(start);
+            return length;
+        }
+        finally{
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * decodes the image straight at the target size, in a software bitmap so that its pixels can be read
+     */
+    @TargetApi(Build.VERSION_CODES.P)
+    private static Bitmap decodeScaled(ContentResolver resolver, Uri uri, final int maxDimension) throws IOException{
+        ImageDecoder.Source source = ImageDecoder.createSource(resolver, uri);
+        return ImageDecoder.decodeBitmap(source, new ImageDecoder.OnHeaderDecodedListener(){
+            @Override
+            public void onHeaderDecoded(ImageDecoder decoder, ImageDecoder.ImageInfo info, ImageDecoder.Source source){
+                Size size = info.getSize();
+                int width = size.getWidth(), height = size.getHeight();
+                decoder.setTargetSize(targetWidth(width, height, maxDimension), targetHeight(width, height, maxDimension));
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+            }
+        });
+    }
+
+    /**
+     * reads the bounds of the image, rewinds the stream and decodes it at the largest power of 2
+     * sample size that keeps it at least as large as the target size
+     */
+    private static Bitmap decodeSampled(ContentResolver resolver, Uri uri, int maxDimension) throws IOException{
+        InputStream in = open(resolver, uri);
+        try{
+            in.mark(MARK_LIMIT);
+            //just get width and height without actually loading the bitmap into memory
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(in, null, options);
+            try{
+                in.reset();
+            }
+            catch(IOException e){
+                //the header was longer than MARK_LIMIT, the image has to be opened again
+                in.close();
+                in = open(resolver, uri);
+            }
+
+            int width = options.outWidth, height = options.outHeight;
+            if(width <= 0 || height <= 0) return null;
+            options.inSampleSize = calculateInSampleSize(width, height,
+                    targetWidth(width, height, maxDimension), targetHeight(width, height, maxDimension));
+            options.inJustDecodeBounds = false;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+        finally{
+            in.close();
+        }
+    }
+
+    private static InputStream open(ContentResolver resolver, Uri uri) throws IOException{
+        InputStream in = resolver.openInputStream(uri);
+        if(in == null) throw new IOException("Could not open " + uri);
+        return new BufferedInputStream(in, BUFFER_SIZE);
+    }
+
+    /**
+     * copies the pixels of the bitmap into the buffer, sampling the nearest pixel of every
+     * target pixel if the bitmap is larger than the target size(ie. a power of 2 sampled bitmap)
+     * @return int  no of pixels copied
+     */
+    private int copyPixels(Bitmap bitmap, int maxDimension){
+        int width = bitmap.getWidth(), height = bitmap.getHeight();
+        int outWidth = targetWidth(width, height, maxDimension);
+        int outHeight = targetHeight(width, height, maxDimension);
+        int length = outWidth * outHeight;
+        if(pixels.length < length) pixels = new int[length];
+
+        if(outWidth == width && outHeight == height){
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            return length;
+        }
+
+        if(row.length < width) row = new int[width];
+        int p = 0;
+        for(int j = 0; j < outHeight; j++){
+            bitmap.getPixels(row, 0, width, 0, j * height / outHeight, width, 1);
+            for(int i = 0; i < outWidth; i++){
+                pixels[p++] = row[i * width / outWidth];
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return int  width of the image scaled down so that its longer side is maxDimension
+     */
+    private static int targetWidth(int width, int height, int maxDimension){
+        if(width <= maxDimension && height <= maxDimension) return width;
+        if(width >= height) return maxDimension;
+        return Math.max(1, Math.round(maxDimension * width / (float) height));
+    }
+
+    /**
+     * @return int  height of the image scaled down so that its longer side is maxDimension
+     */
+    private static int targetHeight(int width, int height, int maxDimension){
+        if(width <= maxDimension && height <= maxDimension) return height;
+        if(height > width) return maxDimension;
+        return Math.max(1, Math.round(maxDimension * height / (float) width));
+    }
+
+    /**
+     * calculate the "ratio" by which the image is to be downscaled
+     * @param imgWidth
+     * @param imgHeight
+     * @param reqWidth
+     * @param reqHeight
+     * @return int  inSampleSize, a power of 2
+     */
+    private static int calculateInSampleSize(int imgWidth, int imgHeight, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+
+        if (imgHeight > reqHeight || imgWidth > reqWidth) {
+
+            final int halfHeight = imgHeight / 2;
+            final int halfWidth = imgWidth / 2;
+
+            // Calculate the largest inSampleSize value that is a power of 2 and keeps both
+            // height and width larger than the requested height and width.
+            while ((halfHeight / inSampleSize) >= reqHeight
+                    && (halfWidth / inSampleSize) >= reqWidth) {
+                inSampleSize *= 2;
+            }
+        }
+
+        return inSampleSize;
+    }
+}
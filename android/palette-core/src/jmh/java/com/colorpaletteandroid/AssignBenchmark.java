@@ -0,0 +1,50 @@
+package com.colorpaletteandroid;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Assignment pass with the packed metric, the sorted sweep(sortedAssign) against comparing every 
+ * color with every medoid. The sweep is O(n + k) per pass, the scan O(n * k), so the gap grows with k
+ */
+@State(Scope.Thread)
+public class AssignBenchmark {
+    @Param({"synthetic", "photo"})
+    public String source;
+    @Param({"250000"})
+    public int pixels;
+    @Param({"16", "64", "256"})
+    public int k;
+    @Param({"true", "false"})
+    public boolean sortedAssign;
+
+    private PixelSet set;
+    private GenColorPalette gen;
+    private ClusterScratch scratch;
+
+    @Setup
+    public void setup() throws IOException{
+        set = BenchmarkData.pixelSet(BenchmarkData.pixels(source, pixels), ColorDistance.PACKED);
+        PaletteOptions options = new PaletteOptions();
+        options.clusters = k;
+        options.sortedAssign = sortedAssign;
+        gen = new GenColorPalette(new int[0], options, BenchmarkData.NO_CALLBACK, null, null);
+
+        scratch = new ClusterScratch();
+        scratch.ensureCapacity(set.size, Math.min(k, set.size));
+        gen.setInitMedoids(scratch.meds, set, scratch.seedDists, scratch.seedGen, new SplitMix64(42));
+        Arrays.fill(scratch.clusterIndex, 0, set.size, -1);
+    }
+
+    @Benchmark
+    public double assign(){
+        gen.assignCluster(set, scratch.clusterIndex, scratch.meds, scratch.diffToMed, scratch.clusterSizes, scratch.sorted, scratch.result);
+        return scratch.result.cost;
+    }
+}
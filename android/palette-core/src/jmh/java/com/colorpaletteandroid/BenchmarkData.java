@@ -0,0 +1,83 @@
+package com.colorpaletteandroid;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Pixel arrays for the benchmarks. "synthetic" is a fixed random image of 8 color groups with noise, 
+ * "photo" is the image in the palette.photo system property(set by palette-core/build.gradle from 
+ * the required -Pphoto=<file>, a real photo) resampled to the requested no of pixels
+ */
+class BenchmarkData {
+
+    //callback that ignores everything, for the benchmarks that don't wait for the palette
+    static final PaletteCallback NO_CALLBACK = new PaletteCallback(){
+        @Override
+        public void onPaletteGen(int[] palette, int[] clusterSizes, boolean Final){}
+        @Override
+        public void onError(Exception e){}
+        @Override
+        public void onRunStats(RunStats stats){}
+        @Override
+        public void onFinish(){}
+    };
+
+    /**
+     * @param source    "synthetic" or "photo"
+     * @param n         no of pixels
+     * @return int[]    ARGB pixels, not sorted
+     */
+    static int[] pixels(String source, int n) throws IOException{
+        if(source.equals("synthetic")) return synthetic(n);
+        if(source.equals("photo")) return photo(n);
+        throw new IllegalArgumentException("Unknown pixel source: " + source);
+    }
+
+    /**
+     * @param pixels    ARGB pixels, not changed
+     * @param distance  color metric
+     * @return PixelSet compressed and sorted colors of the pixels
+     */
+    static PixelSet pixelSet(int[] pixels, ColorDistance distance){
+        int[] sorted = Arrays.copyOf(pixels, pixels.length);
+        Arrays.sort(sorted);
+        PixelSet set = PixelSet.fromSorted(sorted, sorted.length, true);
+        set.setDistance(distance);
+        return set;
+    }
+
+    private static int[] synthetic(int n){
+        Random r = new Random(1);
+        int[] px = new int[n];
+        for(int i = 0; i < n; i++){
+            int c = r.nextInt(8);
+            px[i] = 0xff000000 | ((c * 30 + r.nextInt(20)) << 16) | ((c * 20 + r.nextInt(30)) << 8) | (c * 10 + r.nextInt(40));
+        }
+        return px;
+    }
+
+    //nearest-neighbour resample of the image so it has about n pixels with the same aspect ratio
+    private static int[] photo(int n) throws IOException{
+        String path = System.getProperty("palette.photo");
+        if(path == null) throw new IllegalStateException("palette.photo isn't set, pass -Pphoto=<file> to gradle");
+        BufferedImage img = ImageIO.read(new File(path));
+        if(img == null) throw new IOException("Can't read " + path);
+        int width = img.getWidth(), height = img.getHeight();
+        double scale = Math.sqrt(n / (double)(width * height));
+        int outWidth = Math.max(1, (int)Math.round(width * scale));
+        int outHeight = Math.max(1, n / outWidth);
+        int[] px = new int[outWidth * outHeight];
+        for(int j = 0; j < outHeight; j++){
+            int y = (int)((long) j * height / outHeight);
+            for(int i = 0; i < outWidth; i++){
+                px[j * outWidth + i] = img.getRGB((int)((long) i * width / outWidth), y) | 0xff000000;
+            }
+        }
+        return px;
+    }
+}
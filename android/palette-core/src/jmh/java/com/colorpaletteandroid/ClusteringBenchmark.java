@@ -0,0 +1,72 @@
+package com.colorpaletteandroid;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The stages of a single clustering pass: k-means++ seeding, one assignment pass and one medoid update, 
+ * on the compressed colors of the image. The modes and profilers are set in palette-core/build.gradle
+ */
+@State(Scope.Thread)
+public class ClusteringBenchmark {
+    @Param({"synthetic", "photo"})
+    public String source;
+    //250x250, 500x500 and 1000x1000 images
+    @Param({"62500", "250000", "1000000"})
+    public int pixels;
+    @Param({"8", "16", "64"})
+    public int k;
+    @Param({"packed", "oklab"})
+    public String distance;
+
+    private PixelSet set;
+    private GenColorPalette gen;
+    private ClusterScratch scratch;
+    private int[] seeded;
+    private SplitMix64 random;
+
+    @Setup
+    public void setup() throws IOException{
+        set = BenchmarkData.pixelSet(BenchmarkData.pixels(source, pixels), ColorDistance.fromName(distance));
+        PaletteOptions options = new PaletteOptions();
+        options.clusters = k;
+        options.distance = set.distance;
+        //only used for its options, the pixels are clustered through set
+        gen = new GenColorPalette(new int[0], options, BenchmarkData.NO_CALLBACK, null, null);
+
+        int clusters = Math.min(k, set.size);
+        scratch = new ClusterScratch();
+        scratch.ensureCapacity(set.size, clusters);
+        random = new SplitMix64(42);
+        gen.setInitMedoids(scratch.meds, set, scratch.seedDists, scratch.seedGen, random);
+        seeded = scratch.meds.clone();
+        Arrays.fill(scratch.clusterIndex, 0, set.size, -1);
+        gen.assignCluster(set, scratch.clusterIndex, seeded, scratch.diffToMed, scratch.clusterSizes, scratch.sorted, scratch.result);
+    }
+
+    @Benchmark
+    public int[] seed(){
+        gen.setInitMedoids(scratch.meds, set, scratch.seedDists, scratch.seedGen, random);
+        return scratch.meds;
+    }
+
+    @Benchmark
+    public double assign(){
+        gen.assignCluster(set, scratch.clusterIndex, seeded, scratch.diffToMed, scratch.clusterSizes, scratch.sorted, scratch.result);
+        return scratch.result.cost;
+    }
+
+    @Benchmark
+    public int[] medoids(){
+        //every invocation updates the same clustering
+        System.arraycopy(seeded, 0, scratch.meds, 0, seeded.length);
+        gen.calcMedoids(set, scratch);
+        return scratch.meds;
+    }
+}
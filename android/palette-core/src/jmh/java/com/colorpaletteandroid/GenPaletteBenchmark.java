@@ -0,0 +1,81 @@
+package com.colorpaletteandroid;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A whole palette, from the raw pixels(quantize, sort, compress) to the final palette, 
+ * with the restarts on a pool of one thread per core and the callbacks on an emitter thread like the app. 
+ * "pam+octree" style engines are PAM seeded with that quantizer(PaletteOptions.seedWith)
+ */
+@State(Scope.Thread)
+public class GenPaletteBenchmark {
+    @Param({"synthetic", "photo"})
+    public String source;
+    @Param({"62500", "250000", "1000000"})
+    public int pixels;
+    @Param({"8", "16", "64"})
+    public int k;
+    @Param({"pam", "clara", "fastpam", "median-cut", "octree", "pam+median-cut", "pam+octree"})
+    public String engine;
+
+    private int[] image;
+    private PaletteOptions options;
+    private ExecutorService executor;
+    private ForkJoinPool assignPool;
+    private ExecutorService emitter;
+
+    @Setup
+    public void setup() throws IOException{
+        image = BenchmarkData.pixels(source, pixels);
+        options = new PaletteOptions();
+        options.clusters = k;
+        String[] engines = engine.split("\\+");
+        options.engine = ClusterEngine.fromName(engines[0]);
+        if(engines.length > 1) options.seedWith = ClusterEngine.fromName(engines[1]);
+        options.seed = 42L;
+        int cores = Runtime.getRuntime().availableProcessors();
+        executor = Executors.newFixedThreadPool(cores);
+        assignPool = new ForkJoinPool(cores);
+        emitter = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown
+    public void tearDown(){
+        executor.shutdownNow();
+        assignPool.shutdownNow();
+        emitter.shutdownNow();
+    }
+
+    @Benchmark
+    public int[] genPalette() throws InterruptedException{
+        final int[][] result = new int[1][];
+        final CountDownLatch done = new CountDownLatch(1);
+        new GenColorPalette(image, image.length, options, new PaletteCallback(){
+            @Override
+            public void onPaletteGen(int[] palette, int[] clusterSizes, boolean Final){
+                if(Final) result[0] = palette;
+            }
+            @Override
+            public void onError(Exception e){}
+            @Override
+            public void onRunStats(RunStats stats){}
+            @Override
+            public void onFinish(){
+                done.countDown();
+            }
+        }, executor, assignPool, emitter, null).genPalette();
+        done.await();
+        return result[0];
+    }
+}
@@ -0,0 +1,74 @@
+package com.colorpaletteandroid;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The ordering stage of a job: PixelSort's radix sort(sequential and split across a pool of one thread per core)
+ * against Arrays.sort and Arrays.parallelSort, with raw and quantized pixels. 
+ * Every sort starts from a fresh copy of the pixels, which is included in every score
+ */
+@State(Scope.Thread)
+public class SortBenchmark {
+    @Param({"synthetic", "photo"})
+    public String source;
+    @Param({"62500", "250000", "1000000"})
+    public int pixels;
+    @Param({"0", "5"})
+    public int quantizeBits;
+
+    private int[] image;
+    private int[] buffer;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() throws IOException{
+        image = BenchmarkData.pixels(source, pixels);
+        for(int i = 0; i < image.length; i++){
+            image[i] = PixelSet.quantize(image[i], quantizeBits);
+        }
+        buffer = new int[image.length];
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown(){
+        pool.shutdownNow();
+    }
+
+    @Benchmark
+    public int[] arraysSort(){
+        System.arraycopy(image, 0, buffer, 0, image.length);
+        Arrays.sort(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public int[] parallelSort(){
+        System.arraycopy(image, 0, buffer, 0, image.length);
+        Arrays.parallelSort(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public int[] radixSort(){
+        System.arraycopy(image, 0, buffer, 0, image.length);
+        PixelSort.sort(buffer, buffer.length, null);
+        return buffer;
+    }
+
+    @Benchmark
+    public int[] radixSortParallel(){
+        System.arraycopy(image, 0, buffer, 0, image.length);
+        PixelSort.sort(buffer, buffer.length, pool);
+        return buffer;
+    }
+}
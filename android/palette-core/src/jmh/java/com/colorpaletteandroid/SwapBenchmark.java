@@ -0,0 +1,84 @@
+package com.colorpaletteandroid;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The default PAM job(10 restarts of k-means++ seeding and median updates) against a single FASTPAM restart
+ * (k-means++ seeding and GenColorPalette.swapMedoids) on the compressed colors of the image. Both run on
+ * the benchmark thread, so the scores compare the total CPU of a palette. The cost of both palettes is printed
+ * at the end of every trial, the FASTPAM palette should cost less than the best PAM restart
+ */
+@State(Scope.Thread)
+public class SwapBenchmark {
+    @Param({"synthetic", "photo"})
+    public String source;
+    @Param({"62500", "250000", "1000000"})
+    public int pixels;
+    @Param({"8", "16", "64"})
+    public int k;
+    @Param({"packed", "oklab"})
+    public String distance;
+
+    //no of restarts of the default PAM job
+    private static final int RESTARTS = 10;
+
+    private PixelSet set;
+    private PaletteOptions options;
+    private GenColorPalette gen;
+    private ClusterScratch scratch;
+    //cost of the last palette of every benchmark, 0 if it didn't run
+    private double pamCost, swapCost;
+
+    @Setup
+    public void setup() throws IOException{
+        set = BenchmarkData.pixelSet(BenchmarkData.pixels(source, pixels), ColorDistance.fromName(distance));
+        options = new PaletteOptions();
+        options.clusters = k;
+        options.distance = set.distance;
+        //only used for its options, the pixels are clustered through set
+        gen = new GenColorPalette(new int[0], options, BenchmarkData.NO_CALLBACK, null, null);
+        scratch = new ClusterScratch();
+        scratch.ensureCapacity(set.size, Math.min(k, set.size));
+    }
+
+    @TearDown
+    public void report(){
+        System.out.println(source + " " + pixels + " k=" + k + " " + distance + " cost: pam(best of " + RESTARTS + ") "
+                + (pamCost == 0 ? "-" : String.format("%.6g", pamCost))
+                + ", fastpam " + (swapCost == 0 ? "-" : String.format("%.6g", swapCost)));
+    }
+
+    @Benchmark
+    public double pamRestarts(){
+        //the same generators as a seeded job
+        SplitMix64 root = new SplitMix64(42);
+        double best = Double.MAX_VALUE;
+        for(int run = 0; run < RESTARTS; run++){
+            RunStats stats = new RunStats();
+            Arrays.fill(scratch.clusterIndex, 0, set.size, -1);
+            gen.setInitMedoids(scratch.meds, set, scratch.seedDists, scratch.seedGen, root.split());
+            gen.iterate(set, scratch, stats, false, options.maxIterations);
+            best = Math.min(best, stats.cost);
+        }
+        pamCost = best;
+        return best;
+    }
+
+    @Benchmark
+    public double fastPam(){
+        SplitMix64 random = new SplitMix64(42).split();
+        RunStats stats = new RunStats();
+        gen.setInitMedoids(scratch.meds, set, scratch.seedDists, scratch.seedGen, random);
+        gen.swapMedoids(set, scratch, stats, options.maxIterations, random);
+        swapCost = stats.cost;
+        return stats.cost;
+    }
+}
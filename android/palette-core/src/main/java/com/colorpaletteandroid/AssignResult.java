@@ -0,0 +1,19 @@
+package com.colorpaletteandroid;
+
+/**
+ * Result of an assignment pass, reused for every pass of a run instead of returning a new array
+ */
+class AssignResult {
+    //true if any pixel changed clusters
+    boolean changed;
+    //sum of the distances between the pixels and their medoids
+    double cost;
+    //no of pixels that changed clusters
+    long moved;
+
+    void reset(){
+        changed = false;
+        cost = 0;
+        moved = 0;
+    }
+}
@@ -0,0 +1,61 @@
+package com.colorpaletteandroid;
+
+import java.util.Locale;
+
+/**
+ * Algorithms that GenColorPalette can use to find the palette. PAM, CLARA and FASTPAM find the medoids of every restart,
+ * MEDIAN_CUT and OCTREE are quantizers that build the palette in a single run from a histogram of the pixels
+ */
+public enum ClusterEngine {
+    //k-medoids on all the colors, every pass assigns every color
+    PAM,
+    //CLARA style, k-medoids on a random sample of PaletteOptions.samplePixels pixels followed by 
+    //a single assignment pass over all the colors. Every restart clusters a different sample. 
+    //The work per restart barely grows with the image, so larger images(1500-2000px) can be used
+    CLARA,
+    //k-medoids on all the colors with a FasterPAM style swap phase instead of PAM's median updates, 
+    //see GenColorPalette.swapMedoids. Every swap lowers the true cost under any metric, so a single restart 
+    //(the default) ends up below the best of PAM's 10 restarts
+    FASTPAM,
+    //median cut on a 5 bit per channel histogram, see MedianCutQuantizer. No restarts or iterations,
+    //a few ms even for large images, colors are box means instead of image colors
+    MEDIAN_CUT,
+    //octree reduction of the same histogram, see OctreeQuantizer. Can return fewer than k colors
+    OCTREE;
+
+    //default maxDimension of the CLARA engine
+    public static final int CLARA_MAX_DIMENSION = 1600;
+
+    private static final Quantizer MEDIAN_CUT_QUANTIZER = new MedianCutQuantizer();
+    private static final Quantizer OCTREE_QUANTIZER = new OctreeQuantizer();
+
+    /**
+     * @return Quantizer    the quantizer of MEDIAN_CUT and OCTREE, null for the medoid engines
+     */
+    Quantizer quantizer(){
+        switch(this){
+            case MEDIAN_CUT: return MEDIAN_CUT_QUANTIZER;
+            case OCTREE: return OCTREE_QUANTIZER;
+            default: return null;
+        }
+    }
+
+    /**
+     * @param name      name of the engine("pam", "clara", "fastpam", "median-cut", "octree"), case insensitive
+     * @return ClusterEngine   the engine, PAM if name is null
+     * @throws IllegalArgumentException if the name is not a known engine
+     */
+    public static ClusterEngine fromName(String name){
+        if(name == null) return PAM;
+        switch(name.toLowerCase(Locale.ROOT)){
+            case "pam": return PAM;
+            case "clara": return CLARA;
+            case "fastpam":
+            case "fasterpam": return FASTPAM;
+            case "median-cut":
+            case "mediancut": return MEDIAN_CUT;
+            case "octree": return OCTREE;
+            default: throw new IllegalArgumentException("Unknown engine: " + name);
+        }
+    }
+}
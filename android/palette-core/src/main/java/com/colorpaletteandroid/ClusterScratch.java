@@ -0,0 +1,72 @@
+package com.colorpaletteandroid;
+
+/**
+ * Buffers used by a clustering run. Every clustering thread keeps one(see GenColorPalette), the pixel 
+ * sized buffers grow to the largest image the thread has seen and are reused by every run after that, 
+ * so a run doesn't allocate anything per pass.
+ * Pixel sized buffers can be longer than the current PixelSet, only the first pixelSet.size elements are used.
+ */
+class ClusterScratch {
+    //pixel sized buffers
+    int[] clusterIndex = new int[0];
+    double[] diffToMed = new double[0];
+    //second nearest medoid of every color and its distance, only used by the swap phase of FASTPAM
+    int[] secondIndex = new int[0];
+    double[] diffToSecond = new double[0];
+    double[] seedDists = new double[0];
+    DistributedRandomNumberGenerator seedGen = new DistributedRandomNumberGenerator(0);
+    //candidates of a swap pass(FASTPAM) and the sample they're drawn from, refilled every pass
+    int[] candidates = new int[0];
+    final PixelSet candidateSet = new PixelSet();
+
+    //cluster sized buffers, always exactly as long as the no of clusters
+    int[] meds = new int[0];
+    int[] clusterSizes = new int[0];
+    int[] bestMeds = new int[0];
+    int[] bestSizes = new int[0];
+    long[] clustCounter = new long[0];
+    boolean[] medsCalc = new boolean[0];
+    //change in cost of removing every medoid, and of swapping it with the current candidate(FASTPAM)
+    double[] removalLoss = new double[0];
+    double[] swapDelta = new double[0];
+    //medoid update of the euclidean metrics: Weiszfeld step of every cluster(x, y, z, total weight), 
+    //cost of the current medoid and of the candidate that replaces it if cheaper
+    double[] medSums = new double[0];
+    double[] medCost = new double[0];
+    double[] candidateCost = new double[0];
+    int[] medCandidate = new int[0];
+    GenColorPalette.SortedMedoids sorted = new GenColorPalette.SortedMedoids(0);
+
+    final AssignResult result = new AssignResult();
+
+    /**
+     * makes sure the buffers can hold a run
+     * @param pixels    no of colors in the PixelSet
+     * @param clusters  no of clusters
+     */
+    void ensureCapacity(int pixels, int clusters){
+        if(clusterIndex.length < pixels){
+            clusterIndex = new int[pixels];
+            diffToMed = new double[pixels];
+            secondIndex = new int[pixels];
+            diffToSecond = new double[pixels];
+            seedDists = new double[pixels];
+            seedGen = new DistributedRandomNumberGenerator(pixels);
+        }
+        if(meds.length != clusters){
+            meds = new int[clusters];
+            clusterSizes = new int[clusters];
+            bestMeds = new int[clusters];
+            bestSizes = new int[clusters];
+            clustCounter = new long[clusters];
+            medsCalc = new boolean[clusters];
+            removalLoss = new double[clusters];
+            swapDelta = new double[clusters];
+            medSums = new double[4 * clusters];
+            medCost = new double[clusters];
+            candidateCost = new double[clusters];
+            medCandidate = new int[clusters];
+            sorted = new GenColorPalette.SortedMedoids(clusters);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.colorpaletteandroid;
+
+import java.util.Locale;
+
+/**
+ * Distance metrics that can be used to compare colors while clustering.
+ * Except for PACKED, every color is converted once into 3 coordinates(stored in PixelSet)
+ * and compared with the euclidean distance between them, so the metric adds nothing to the 
+ * cost of the clustering loops.
+ */
+public enum ColorDistance {
+    //absolute difference of the packed ARGB ints, red dominates the distance
+    PACKED,
+    //euclidean distance between the r, g, b values
+    RGB,
+    //euclidean distance in CIELAB(D65), close to how different colors look
+    CIELAB,
+    //euclidean distance in OKLab, perceptually uniform and cheaper to compute than CIELAB
+    OKLAB;
+
+    //sRGB value(0-255) -> linear light(0-1)
+    private static final float[] SRGB_TO_LINEAR = new float[256];
+    static{
+        for(int i = 0; i < 256; i++){
+            double c = i / 255.0;
+            SRGB_TO_LINEAR[i] = (float)(c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+        }
+    }
+
+    /**
+     * @param name      name of the metric("packed", "rgb", "lab"/"cielab", "oklab"), case insensitive
+     * @return ColorDistance   the metric, PACKED if name is null
+     * @throws IllegalArgumentException if the name is not a known metric
+     */
+    public static ColorDistance fromName(String name){
+        if(name == null) return PACKED;
+        switch(name.toLowerCase(Locale.ROOT)){
+            case "packed": return PACKED;
+            case "rgb": return RGB;
+            case "lab":
+            case "cielab": return CIELAB;
+            case "oklab": return OKLAB;
+            default: throw new IllegalArgumentException("Unknown color distance: " + name);
+        }
+    }
+
+    /**
+     * converts a color into the 3 coordinates that are compared by this metric
+     * @param color     ARGB color
+     * @param out       (size 3) filled with the coordinates
+     */
+    void toCoordinates(int color, float[] out){
+        int r = (color >> 16) & 0xFF;
+        int g = (color >> 8) & 0xFF;
+        int b = color & 0xFF;
+        switch(this){
+            case CIELAB: {
+                float lr = SRGB_TO_LINEAR[r], lg = SRGB_TO_LINEAR[g], lb = SRGB_TO_LINEAR[b];
+                //linear sRGB -> XYZ, normalised by the D65 white point
+                double x = (0.4124564 * lr + 0.3575761 * lg + 0.1804375 * lb) / 0.95047;
+                double y = (0.2126729 * lr + 0.7151522 * lg + 0.0721750 * lb);
+                double z = (0.0193339 * lr + 0.1191920 * lg + 0.9503041 * lb) / 1.08883;
+                double fx = labF(x), fy = labF(y), fz = labF(z);
+                out[0] = (float)(116 * fy - 16);
+                out[1] = (float)(500 * (fx - fy));
+                out[2] = (float)(200 * (fy - fz));
+                break;
+            }
+            case OKLAB: {
+                float lr = SRGB_TO_LINEAR[r], lg = SRGB_TO_LINEAR[g], lb = SRGB_TO_LINEAR[b];
+                double l = Math.cbrt(0.4122214708 * lr + 0.5363325363 * lg + 0.0514459929 * lb);
+                double m = Math.cbrt(0.2119034982 * lr + 0.6806995451 * lg + 0.1073969566 * lb);
+                double s = Math.cbrt(0.0883024619 * lr + 0.2817188376 * lg + 0.6299787005 * lb);
+                //scaled by 100 so the distances are in the same range as CIELAB
+                out[0] = (float)(100 * (0.2104542553 * l + 0.7936177850 * m - 0.0040720468 * s));
+                out[1] = (float)(100 * (1.9779984951 * l - 2.4285922050 * m + 0.4505937099 * s));
+                out[2] = (float)(100 * (0.0259040371 * l + 0.7827717662 * m - 0.8086757660 * s));
+                break;
+            }
+            default:
+                out[0] = r;
+                out[1] = g;
+                out[2] = b;
+                break;
+        }
+    }
+
+    private static double labF(double t){
+        return t > 216.0 / 24389.0 ? Math.cbrt(t) : (24389.0 / 27.0 * t + 16) / 116.0;
+    }
+}
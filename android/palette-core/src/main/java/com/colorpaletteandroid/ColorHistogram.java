@@ -0,0 +1,70 @@
+package com.colorpaletteandroid;
+
+/**
+ * Pixel counts and channel sums of the colors, with 5 bits per channel(32768 bins). 
+ * Built in a single pass over the pixels, it is the input of the quantizer engines. 
+ * The sums give the exact mean color of any group of bins, so the bins only limit how finely the colors can be split.
+ */
+final class ColorHistogram {
+    static final int BITS = 5;
+    static final int SIDE = 1 << BITS;
+    static final int BINS = SIDE * SIDE * SIDE;
+
+    //no of pixels in every bin
+    final long[] counts = new long[BINS];
+    //sum of the red, green and blue values of the pixels in every bin
+    final long[] rSum = new long[BINS];
+    final long[] gSum = new long[BINS];
+    final long[] bSum = new long[BINS];
+    //total no of pixels
+    long total;
+
+    /**
+     * @param pixels    ARGB pixels
+     * @param length    no of pixels to use
+     * @return ColorHistogram   histogram of the first length pixels
+     */
+    static ColorHistogram of(int[] pixels, int length){
+        ColorHistogram h = new ColorHistogram();
+        for(int i = 0; i < length; i++){
+            h.add(pixels[i], 1);
+        }
+        return h;
+    }
+
+    /**
+     * @param set       weighted colors
+     * @return ColorHistogram   histogram of the colors, every color counts as many times as its weight
+     */
+    static ColorHistogram of(PixelSet set){
+        ColorHistogram h = new ColorHistogram();
+        for(int i = 0; i < set.size; i++){
+            h.add(set.colors[i], set.weights[i]);
+        }
+        return h;
+    }
+
+    /**
+     * @return int  index of the bin with the given 5 bit channel values
+     */
+    static int index(int r, int g, int b){
+        return (r << (2 * BITS)) | (g << BITS) | b;
+    }
+
+    private void add(int color, int weight){
+        int r = (color >> 16) & 0xFF, g = (color >> 8) & 0xFF, b = color & 0xFF;
+        int i = index(r >> (8 - BITS), g >> (8 - BITS), b >> (8 - BITS));
+        counts[i] += weight;
+        rSum[i] += (long) r * weight;
+        gSum[i] += (long) g * weight;
+        bSum[i] += (long) b * weight;
+        total += weight;
+    }
+
+    /**
+     * @return int  opaque ARGB color with the given channel sums divided by count
+     */
+    static int meanColor(long r, long g, long b, long count){
+        return 0xFF000000 | (int)((r + count / 2) / count) << 16 | (int)((g + count / 2) / count) << 8 | (int)((b + count / 2) / count);
+    }
+}
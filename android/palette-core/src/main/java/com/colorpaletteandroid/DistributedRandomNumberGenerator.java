@@ -0,0 +1,58 @@
+package com.colorpaletteandroid;
+
+/**
+ * Class to generate random numbers according to a weighted probability distribution.
+ * Weights are added in order and kept as a running(cumulative) sum, so a number is picked
+ * with a binary search. The buffer is reused after clear(), so it can be used for every
+ * center of every k-means++ run without allocating.
+ * @see based on https://stackoverflow.com/a/20329901
+ */
+public class DistributedRandomNumberGenerator {
+
+    //i'th element is the sum of the weights of numbers 0 to i
+    private double[] cumDist;
+    private int length = 0;
+    private double distSum = 0;
+
+    public DistributedRandomNumberGenerator(int capacity) {
+        cumDist = new double[capacity];
+    }
+
+    /**
+     * removes all the numbers, the buffer is kept
+     */
+    public void clear() {
+        length = 0;
+        distSum = 0;
+    }
+
+    /**
+     * adds the next number(ie. the number length) with the given weight
+     * @param distribution  weight of the number, does not need to be normalised
+     */
+    public void addNumber(double distribution) {
+        distSum += distribution;
+        cumDist[length++] = distSum;
+    }
+
+    /**
+     * @param random    source of randomness
+     * @return int      a number in [0, length) picked with probability weight/sum of weights, 
+     *                  0 if all the weights are 0
+     */
+    public int getDistributedRandomNumber(SplitMix64 random) {
+        if(length == 0 || distSum <= 0) return 0;
+        double target = random.nextDouble() * distSum;
+
+        //first number whose cumulative weight is above the target, numbers with weight 0 
+        //have the same cumulative weight as the number before them so they're never picked
+        int lo = 0, hi = length - 1;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(cumDist[mid] > target) hi = mid;
+            else lo = mid + 1;
+        }
+        return lo;
+    }
+
+}
@@ -0,0 +1,1344 @@
+package com.colorpaletteandroid;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates a color palette from the pixels of an image using k-medoids clustering. 
+ * setInitMedoids, assignCluster, calcMedoids, iterate and swapMedoids are package-private so the benchmarks(src/jmh) 
+ * can run them on their own
+ */
+public class GenColorPalette{
+    //java.util.logging so the clustering doesn't depend on Android, it goes to logcat in the app
+    private static final Logger LOG = Logger.getLogger("ColorPaletteModule");
+    //no of clusters(ie. no of colors in the palette), options.clusters unless the image has fewer colors
+    private int clusters;
+    //no of colors assigned by a single fork-join task when parallelAssign is on
+    private static final int ASSIGN_CHUNK = 8192;
+    //a swap has to lower the cost by more than this fraction, so rounding errors can't swap back and forth
+    private static final double SWAP_EPSILON = 1e-12;
+    //buffers of every clustering thread, reused by all the runs on that thread
+    private static final ThreadLocal<ClusterScratch> SCRATCH = new ThreadLocal<ClusterScratch>(){
+        @Override
+        protected ClusterScratch initialValue(){
+            return new ClusterScratch();
+        }
+    };
+    //copy of the caller's pixels, until prepare() builds pixelSet from them
+    private int[] pixels;
+    //unique colors of the image with their pixel counts, sorted. Null for the quantizer engines
+    private PixelSet pixelSet;
+    //histogram of the pixels, used instead of pixelSet by the quantizer engines
+    private ColorHistogram histogram;
+    //quantizer of options.engine, null for the medoid engines
+    private Quantizer quantizer;
+
+    //lowest-cost result so far, replaced with a compare-and-set by the restarts
+    private final AtomicReference<PaletteResult> best = new AtomicReference<PaletteResult>();
+    //no of restarts that have exited
+    private final AtomicInteger finished = new AtomicInteger();
+
+    //runs the callbacks one at a time in order, null to run them on the worker threads(serialized by emitLock)
+    private Executor emitter;
+    //state of the callbacks, only used by publish() and the emitted tasks
+    private final Object emitLock = new Object();
+    private final Runnable publishTask = new Runnable(){
+        @Override
+        public void run(){
+            publish();
+        }
+    };
+    //nanoTime of the last intermediate palette(0 if none was sent), and the last result that was sent
+    private long lastEmitNanos = 0;
+    private PaletteResult lastEmitted;
+    private boolean finalSent = false;
+    //starting medoids(indices into pixelSet) of the first restart, from options.seedWith or the preview palette
+    private volatile int[] startMeds;
+    //shared executor owned by the module, the restarts are queued on it(by priority if it is a PriorityExecutor)
+    private ExecutorService eService;
+    //pool that splits a single assignment pass across cores, used if parallelAssign is on
+    private ForkJoinPool assignPool;
+    //no of restarts, their lowest-cost palette is the final one
+    private int restarts;
+    //set by cancel(), checked by the workers between iterations
+    private volatile boolean cancelled = false;
+    //interface to send data from the worker threads to main thread
+    private PaletteCallback paletteCallback;
+    private PaletteOptions options;
+    //timers and counters of the module, null if they aren't recorded
+    private final MetricsRegistry metrics;
+
+    GenColorPalette(int[] pixels, PaletteOptions options, PaletteCallback paletteCallback, ExecutorService eService, ForkJoinPool assignPool){
+        this(pixels, pixels == null ? 0 : pixels.length, options, paletteCallback, eService, assignPool, null, null);
+    }
+
+    /**
+     * @param pixels    pixel buffer, only the first `length` pixels are used. They are copied(the quantizer engines 
+     *                  only read them into a histogram), so the buffer can be reused as soon as the constructor returns
+     * @param length    no of pixels in the buffer
+     * @param emitter   single thread(or otherwise serial) executor that runs the callbacks, so the restarts 
+     *                  never wait for them. If null the callbacks run on the worker threads one at a time
+     * @param metrics   timers and counters of the module(can be null)
+     */
+    GenColorPalette(int[] pixels, int length, PaletteOptions options, PaletteCallback paletteCallback, 
+                    ExecutorService eService, ForkJoinPool assignPool, Executor emitter, MetricsRegistry metrics){
+        this.metrics = metrics;
+        this.quantizer = options.engine.quantizer();
+        if(quantizer != null){
+            //a single pass over the pixels, no sorting
+            if(pixels != null && length > 0) this.histogram = ColorHistogram.of(pixels, length);
+        }
+        //sorted later by prepare(), off the calling thread
+        else if(pixels != null && length > 0) this.pixels = Arrays.copyOf(pixels, length);
+        this.paletteCallback = paletteCallback;
+        this.options = options;
+        this.eService = eService;
+        this.assignPool = assignPool;
+        this.emitter = emitter;
+        //a parallel assignment already uses every core, so a single restart gives the fastest palette. 
+        //A quantizer always gives the same palette, so it runs once, and a single FASTPAM restart beats PAM's 10
+        if(quantizer != null) this.restarts = 1;
+        else if(options.restarts > 0) this.restarts = options.restarts;
+        else this.restarts = options.parallelAssign || options.engine == ClusterEngine.FASTPAM ? 1 : 10;
+        //lowered by prepare() if the image has fewer colors
+        this.clusters = options.clusters;
+    }
+
+    /**
+     * Quantizes and radix sorts the copied pixels and builds pixelSet from them, the first stage of a job. 
+     * The sort is split across assignPool if there is one
+     */
+    private void prepare(){
+        if(pixels == null) return;
+        if(options.quantizeBits > 0){
+            for(int i = 0; i < pixels.length; i++){
+                pixels[i] = PixelSet.quantize(pixels[i], options.quantizeBits);
+            }
+        }
+        long sortStart = System.nanoTime();
+        PixelSort.sort(pixels, pixels.length, assignPool);
+        if(metrics != null) metrics.sort.since(sortStart);
+        pixelSet = PixelSet.fromSorted(pixels, pixels.length, options.compress);
+        pixelSet.setDistance(options.distance);
+        pixels = null;
+        clusters = Math.min(options.clusters, pixelSet.size);
+    }
+
+    /**
+     * Stops the palette generation, restarts that are still queued exit without doing any work 
+     * and running ones stop at the next iteration. No final palette is sent after a cancel.
+     */
+    public void cancel(){
+        cancelled = true;
+    }
+
+    /**
+     * @return true if the job was cancelled, or the thread running it was interrupted(ie. the executor is shutting down)
+     */
+    private boolean isCancelled(){
+        return cancelled || Thread.currentThread().isInterrupted();
+    }
+    
+    /**
+   * Generates colour palette from the pixel array. Returns right away, the pixels are sorted 
+   * on the executor before the restarts are queued(the quantizer engines run on the calling thread)
+   */
+    public void genPalette(){
+        if(quantizer != null){
+            runQuantizer();
+            return;
+        }
+        queue(new Runnable(){
+            @Override
+            public void run(){
+                start();
+            }
+        });
+    }
+
+    /**
+     * queues a task of this job on the executor with the job's priority(see PriorityExecutor)
+     */
+    private void queue(Runnable task){
+        eService.execute(new PriorityExecutor.Task(options.priority, task));
+    }
+
+    /**
+     * Sends an error and finishes the job without a palette
+     */
+    private void fail(Exception e){
+        emitError(e);
+        finished.set(restarts);
+        emit(publishTask);
+    }
+
+    /**
+     * builds pixelSet, then runs the preview on this thread and queues the restarts
+     */
+    private void start(){
+        if(isCancelled()){
+            finished.set(restarts);
+            emit(publishTask);
+            return;
+        }
+        try{
+            prepare();
+        }
+        catch(Exception e){
+            LOG.log(Level.WARNING, "Exception while sorting the pixels", e);
+            fail(e);
+            return;
+        }
+        if(this.pixelSet == null || this.pixelSet.size == 0) {
+            fail(new IllegalArgumentException("Image has no pixels"));
+            return;
+        }
+
+        //the generators are split off in a fixed order on this thread, so with a seed every restart 
+        //gets the same generator no matter which thread runs it
+        SplitMix64 root = options.seed == null ? SplitMix64.unseeded() : new SplitMix64(options.seed);
+        final SplitMix64[] randoms = new SplitMix64[restarts];
+        for(int i = 0; i < restarts; i++){
+            randoms[i] = root.split();
+        }
+
+        if(options.seedWith != null){
+            try{
+                startMeds = quantizerMedoids(options.seedWith.quantizer());
+            }
+            catch(Exception e){
+                //the first restart is seeded with k-means++ instead
+                LOG.log(Level.WARNING, "Seeding exception", e);
+            }
+        }
+
+        //the preview is small enough to cluster on this thread before the restarts are queued
+        if(options.progressive && pixelSet.totalWeight > options.previewPixels){
+            try{
+                runPreview(root.split());
+            }
+            catch(Exception e){
+                //the restarts still give a palette
+                LOG.log(Level.WARNING, "Preview exception", e);
+            }
+        }
+        
+        for(int i = 0; i < restarts; i++){
+            final int run = i;
+            queue(new Runnable(){
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    RunStats stats = new RunStats();
+                    stats.run = run;
+                    //buffers of this thread, the best clustering is copied out of them in finishRun
+                    ClusterScratch scratch = SCRATCH.get();
+                    scratch.ensureCapacity(pixelSet.size, clusters);
+                    try{
+                        //restarts still in the queue after a cancel just exit
+                        if(isCancelled()){
+                            stats.cancelled = true;
+                            return;
+                        }
+
+                        if(options.engine == ClusterEngine.CLARA){
+                            runSampled(run, randoms[run], scratch, stats);
+                            return;
+                        }
+                        Arrays.fill(scratch.clusterIndex, 0, pixelSet.size, -1);
+                        //the first restart refines the quantizer's or the preview's palette
+                        if(run == 0 && startMeds != null) System.arraycopy(startMeds, 0, scratch.meds, 0, clusters);
+                        else setInitMedoids(scratch.meds, pixelSet, scratch.seedDists, scratch.seedGen, randoms[run]);
+                        if(options.engine == ClusterEngine.FASTPAM) swapMedoids(pixelSet, scratch, stats, options.maxIterations, randoms[run]);
+                        else iterate(pixelSet, scratch, stats, true, options.maxIterations);
+                    }
+                    catch(Exception e){
+                        stats.cost = Double.MAX_VALUE;
+                        LOG.log(Level.WARNING, "Exception in run " + run, e);
+                        emitError(e);
+                    }
+                    finally{
+                        stats.timeNanos = System.nanoTime() - start;
+                        if(metrics != null){
+                            metrics.restart.record(stats.timeNanos);
+                            metrics.restarts.incrementAndGet();
+                            if(stats.pruned) metrics.prunedRestarts.incrementAndGet();
+                            if(stats.cancelled) metrics.cancelledRestarts.incrementAndGet();
+                        }
+                        if(options.reportStats) emitStats(stats);
+                        finishRun(run, stats.cost, scratch.bestMeds, scratch.bestSizes);
+                    }
+                }
+            });    
+        }
+    }
+
+    /**
+     * runs the k-medoids iterations of a single run, starting from the medoids in scratch.meds. 
+     * The lowest-cost clustering of the run is left in scratch.bestMeds and scratch.bestSizes
+     * @param set       colors to cluster
+     * @param scratch   buffers of this thread, with capacity for the set and the clusters
+     * @param stats     filled with the iterations, cost and how the run ended, 
+     *                  the cost is Double.MAX_VALUE if the run has no result
+     * @param prune     stop the run if it is far behind the best restart
+     * @param maxIterations     max no of assignment passes
+     */
+    void iterate(PixelSet set, ClusterScratch scratch, RunStats stats, boolean prune, int maxIterations){
+        int[] meds = scratch.meds;
+        int[] clusterSizes = scratch.clusterSizes;
+        int[] clusterIndex = scratch.clusterIndex;
+        AssignResult changed = scratch.result;
+
+        double prevCost = Double.MAX_VALUE;
+        for(int j = 0; j < maxIterations; j++){
+            if(isCancelled()){
+                stats.cancelled = true;
+                stats.cost = Double.MAX_VALUE;
+                return;
+            }
+            assignCluster(set, clusterIndex, meds, scratch.diffToMed, clusterSizes, scratch.sorted, changed);
+            double cost = changed.cost;
+            stats.iterations++;
+
+            //every pass costs no more than the one before it, the clustering of the lowest cost is kept for the result
+            if(cost < stats.cost){
+                stats.cost = cost;
+                System.arraycopy(meds, 0, scratch.bestMeds, 0, meds.length);
+                System.arraycopy(clusterSizes, 0, scratch.bestSizes, 0, clusterSizes.length);
+            }
+
+            if(!changed.changed 
+                    || changed.moved < options.minMovedFraction * set.totalWeight
+                    || prevCost - cost <= options.minCostDelta * prevCost){
+                stats.converged = true;
+                break;
+            }
+            //no point in going on if this restart is far behind the best one. 
+            //Whether a restart is pruned depends on which restarts finished before it, so seeded runs aren't pruned
+            if(prune && options.seed == null && options.pruneRatio > 0 && stats.iterations >= options.pruneAfter 
+                    && cost > bestCost() * options.pruneRatio){
+                stats.pruned = true;
+                stats.cost = Double.MAX_VALUE;
+                break;
+            }
+            prevCost = cost;
+            calcMedoids(set, scratch);
+        }
+    }
+
+    /**
+     * FasterPAM style swap phase(Schubert and Rousseeuw), starts from the medoids in scratch.meds. 
+     * Every color keeps its nearest and second nearest medoid with their distances, so a single pass over the colors 
+     * gives the change in cost of swapping a candidate color with each of the k medoids, and the best of those swaps 
+     * is made right away if it lowers the cost. Unlike calcMedoids a swap can move a medoid to another cluster. 
+     * A pass tries options.swapCandidates candidates drawn by pixel count(every color if the set has fewer), 
+     * the run has converged when a pass lowers the cost by no more than minCostDelta. 
+     * With the packed metric the swaps are followed by median updates(see iterate). 
+     * The lowest-cost clustering is left in scratch.bestMeds and scratch.bestSizes
+     * @param set       colors to cluster, at least as many as the clusters
+     * @param scratch   buffers of this thread, with capacity for the set and the clusters
+     * @param stats     filled with the passes, cost and how the run ended, 
+     *                  the cost is Double.MAX_VALUE if the run was cancelled
+     * @param maxIterations     max no of swap passes
+     * @param random    draws the candidates
+     */
+    void swapMedoids(PixelSet set, ClusterScratch scratch, RunStats stats, int maxIterations, SplitMix64 random){
+        int k = scratch.meds.length;
+        //a single medoid has no second nearest one, the median update already finds its best swap
+        if(k < 2){
+            Arrays.fill(scratch.clusterIndex, 0, set.size, -1);
+            iterate(set, scratch, stats, false, maxIterations);
+            return;
+        }
+        int[] meds = scratch.meds;
+        int[] nearest = scratch.clusterIndex;
+        double[] dNearest = scratch.diffToMed, dSecond = scratch.diffToSecond;
+        double[] loss = scratch.removalLoss, delta = scratch.swapDelta;
+        int[] weights = set.weights;
+        int[] colors = set.colors;
+        float[] xs = set.x, ys = set.y, zs = set.z;
+        boolean packed = set.distance == ColorDistance.PACKED;
+        int n = set.size;
+
+        for(int o = 0; o < n; o++){
+            nearestTwo(set, meds, o, scratch);
+        }
+        double cost = removalLoss(set, scratch);
+        //with the packed metric only the colors within reach of a candidate can move to it, 
+        //and as the colors are sorted those are a single range
+        double reach = packed ? maxSecond(dSecond, n) : 0;
+        for(int pass = 0; pass < maxIterations; pass++){
+            long start = System.nanoTime();
+            double passCost = cost;
+            int candidates = swapCandidates(set, random, scratch);
+            for(int i = 0; i < candidates; i++){
+                int c = scratch.candidates[i];
+                if(isCancelled()){
+                    stats.cancelled = true;
+                    stats.cost = Double.MAX_VALUE;
+                    return;
+                }
+                //a medoid's swaps can't lower the cost
+                if(dNearest[c] == 0 && meds[nearest[c]] == c) continue;
+
+                //delta[m] ends up as the change in cost of replacing medoid m with c, minus the gain of the colors 
+                //that move to c whatever medoid is removed(shared)
+                System.arraycopy(loss, 0, delta, 0, k);
+                double shared = 0;
+                float cx = packed ? 0 : xs[c], cy = packed ? 0 : ys[c], cz = packed ? 0 : zs[c];
+                int from = packed ? firstAtLeast(colors, n, colors[c] - reach) : 0;
+                int to = packed ? firstAtLeast(colors, n, colors[c] + reach) : n;
+                for(int o = from; o < to; o++){
+                    //most colors are further from the candidate than from their second nearest medoid, 
+                    //so the euclidean distance is only taken once the squared one is known to be closer
+                    double d;
+                    if(packed) d = Math.abs((double)colors[o] - colors[c]);
+                    else{
+                        float dx = xs[o] - cx, dy = ys[o] - cy, dz = zs[o] - cz;
+                        d = dx * dx + dy * dy + dz * dz;
+                        if(d >= dSecond[o] * dSecond[o]) continue;
+                        d = Math.sqrt(d);
+                    }
+                    if(d < dSecond[o]){
+                        int w = weights[o];
+                        int m = nearest[o];
+                        if(d < dNearest[o]){
+                            shared += w * (d - dNearest[o]);
+                            //o moves to c, so removing its medoid no longer sends it to its second nearest
+                            delta[m] += w * (dNearest[o] - dSecond[o]);
+                        }
+                        else delta[m] += w * (d - dSecond[o]);
+                    }
+                }
+                int best = 0;
+                for(int m = 1; m < k; m++){
+                    if(delta[m] < delta[best]) best = m;
+                }
+                if(delta[best] + shared < -SWAP_EPSILON * cost){
+                    meds[best] = c;
+                    cost = swapCaches(set, meds, best, scratch);
+                    if(packed) reach = maxSecond(dSecond, n);
+                }
+            }
+            stats.iterations++;
+
+            if(metrics != null) metrics.swap.since(start);
+            if(passCost - cost <= options.minCostDelta * passCost){
+                stats.converged = true;
+                break;
+            }
+        }
+
+        stats.cost = cost;
+        System.arraycopy(meds, 0, scratch.bestMeds, 0, k);
+        Arrays.fill(scratch.bestSizes, 0);
+        for(int o = 0; o < n; o++){
+            scratch.bestSizes[nearest[o]] += weights[o];
+        }
+        //with the packed metric the weighted median of a cluster is its best medoid, and the median updates 
+        //of the sorted sweep take O(n + k), so they finish off the medoids the sampled candidates missed. 
+        //iterate only replaces the clustering if it lowers the cost
+        if(packed && options.sortedAssign){
+            System.arraycopy(scratch.bestSizes, 0, scratch.clusterSizes, 0, k);
+            calcMedoids(set, scratch);
+            iterate(set, scratch, stats, false, maxIterations);
+        }
+    }
+
+    /**
+     * fills scratch.candidates with the indices in the set of the candidates of a swap pass, 
+     * options.swapCandidates colors drawn by pixel count(a color can be drawn more than once), or every color if the set has fewer
+     * @return int      no of candidates
+     */
+    private int swapCandidates(PixelSet set, SplitMix64 random, ClusterScratch scratch){
+        int max = Math.min(options.swapCandidates, set.size);
+        if(scratch.candidates.length < max) scratch.candidates = new int[max];
+        int[] candidates = scratch.candidates;
+        if(set.size <= options.swapCandidates){
+            for(int i = 0; i < set.size; i++){
+                candidates[i] = i;
+            }
+            return set.size;
+        }
+        //the sample is taken from the sorted colors of the set, so every color is one of them
+        PixelSet sample = scratch.candidateSet;
+        set.sampleInto(options.swapCandidates, random, sample);
+        for(int i = 0; i < sample.size; i++){
+            candidates[i] = Arrays.binarySearch(set.colors, 0, set.size, sample.colors[i]);
+        }
+        return sample.size;
+    }
+
+    /**
+     * updates the nearest and second nearest medoid of every color after medoid m was replaced, 
+     * only the colors whose nearest or second nearest medoid was m need to check every medoid. 
+     * scratch.removalLoss is filled in the same pass, see removalLoss
+     * @return double   cost of the clustering
+     */
+    private static double swapCaches(PixelSet set, int[] meds, int m, ClusterScratch scratch){
+        int[] nearest = scratch.clusterIndex, second = scratch.secondIndex;
+        double[] dNearest = scratch.diffToMed, dSecond = scratch.diffToSecond;
+        double[] loss = scratch.removalLoss;
+        int[] weights = set.weights;
+        Arrays.fill(loss, 0);
+        double cost = 0;
+        int med = meds[m];
+        for(int o = 0; o < set.size; o++){
+            double d = distance(set, o, med);
+            if(nearest[o] == m){
+                if(d <= dSecond[o]) dNearest[o] = d;
+                else nearestTwo(set, meds, o, scratch);
+            }
+            else if(d < dNearest[o]){
+                second[o] = nearest[o];
+                dSecond[o] = dNearest[o];
+                nearest[o] = m;
+                dNearest[o] = d;
+            }
+            else if(second[o] == m || d < dSecond[o]){
+                if(d <= dSecond[o]){
+                    second[o] = m;
+                    dSecond[o] = d;
+                }
+                //the old second nearest is gone and the new medoid is further, so any medoid can be second
+                else nearestTwo(set, meds, o, scratch);
+            }
+            loss[nearest[o]] += weights[o] * (dSecond[o] - dNearest[o]);
+            cost += weights[o] * dNearest[o];
+        }
+        return cost;
+    }
+
+    /**
+     * finds the nearest and second nearest medoid of a color by checking every medoid, 
+     * on a tie the medoid with the lower index is nearer
+     */
+    private static void nearestTwo(PixelSet set, int[] meds, int o, ClusterScratch scratch){
+        int first = -1, second = -1;
+        double dFirst = Double.MAX_VALUE, dSecond = Double.MAX_VALUE;
+        for(int j = 0; j < meds.length; j++){
+            double d = distance(set, o, meds[j]);
+            if(d < dFirst){
+                second = first;
+                dSecond = dFirst;
+                first = j;
+                dFirst = d;
+            }
+            else if(d < dSecond){
+                second = j;
+                dSecond = d;
+            }
+        }
+        scratch.clusterIndex[o] = first;
+        scratch.diffToMed[o] = dFirst;
+        scratch.secondIndex[o] = second;
+        scratch.diffToSecond[o] = dSecond;
+    }
+
+    /**
+     * fills scratch.removalLoss with the increase in cost of removing every medoid(its colors move to their 
+     * second nearest medoid)
+     * @return double   cost of the clustering, summed again after every swap(by swapCaches) so it doesn't drift
+     */
+    private static double removalLoss(PixelSet set, ClusterScratch scratch){
+        double[] loss = scratch.removalLoss;
+        int[] nearest = scratch.clusterIndex;
+        double[] dNearest = scratch.diffToMed, dSecond = scratch.diffToSecond;
+        int[] weights = set.weights;
+        Arrays.fill(loss, 0);
+        double cost = 0;
+        for(int o = 0; o < set.size; o++){
+            loss[nearest[o]] += weights[o] * (dSecond[o] - dNearest[o]);
+            cost += weights[o] * dNearest[o];
+        }
+        return cost;
+    }
+
+    /**
+     * @return double   largest distance from a color to its second nearest medoid
+     */
+    private static double maxSecond(double[] dSecond, int n){
+        double max = 0;
+        for(int o = 0; o < n; o++){
+            if(dSecond[o] > max) max = dSecond[o];
+        }
+        return max;
+    }
+
+    /**
+     * @return int  first of the n sorted colors that is >= value(n if there is none)
+     */
+    private static int firstAtLeast(int[] colors, int n, double value){
+        int lo = 0, hi = n;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(colors[mid] < value) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return double   distance between two colors of the set, the one assignCluster's cost uses
+     *                  (absolute difference for the packed metric, euclidean distance for the others)
+     */
+    private static double distance(PixelSet set, int a, int b){
+        if(set.distance == ColorDistance.PACKED) return Math.abs((double)set.colors[a] - set.colors[b]);
+        float dx = set.x[a] - set.x[b], dy = set.y[a] - set.y[b], dz = set.z[a] - set.z[b];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * A restart of the CLARA engine, clusters a random sample of options.samplePixels pixels and then 
+     * assigns all the colors to the medoids of the sample once, the cost of that pass is the cost of the restart. 
+     * With starting medoids(options.seedWith or a preview palette) the first restart assigns all the colors to them instead.
+     * The lowest-cost clustering is left in scratch.bestMeds and scratch.bestSizes
+     * @param run       index of the restart
+     * @param random    random generator of the restart
+     * @param scratch   buffers of this thread, with capacity for pixelSet and the clusters
+     * @param stats     filled with the iterations(including the full pass), cost and how the run ended
+     */
+    private void runSampled(int run, SplitMix64 random, ClusterScratch scratch, RunStats stats){
+        int[] meds = scratch.meds;
+        if(run == 0 && startMeds != null){
+            System.arraycopy(startMeds, 0, meds, 0, clusters);
+        }
+        else{
+            PixelSet sample = pixelSet.sample(options.samplePixels, random);
+            //the sample doesn't have enough colors, so all the colors are clustered
+            if(sample.size < clusters){
+                Arrays.fill(scratch.clusterIndex, 0, pixelSet.size, -1);
+                setInitMedoids(meds, pixelSet, scratch.seedDists, scratch.seedGen, random);
+                iterate(pixelSet, scratch, stats, true, options.maxIterations);
+                return;
+            }
+
+            //the sample's cost isn't comparable with the full cost of the other restarts, so it isn't pruned
+            Arrays.fill(scratch.clusterIndex, 0, sample.size, -1);
+            setInitMedoids(meds, sample, scratch.seedDists, scratch.seedGen, random);
+            iterate(sample, scratch, stats, false, options.maxIterations);
+            if(stats.cost == Double.MAX_VALUE) return;
+            //the sample is taken from the sorted colors, so every medoid is one of them
+            for(int i = 0; i < clusters; i++){
+                meds[i] = Arrays.binarySearch(pixelSet.colors, 0, pixelSet.size, sample.colors[scratch.bestMeds[i]]);
+            }
+        }
+
+        if(isCancelled()){
+            stats.cancelled = true;
+            stats.cost = Double.MAX_VALUE;
+            return;
+        }
+        Arrays.fill(scratch.clusterIndex, 0, pixelSet.size, -1);
+        assignCluster(pixelSet, scratch.clusterIndex, meds, scratch.diffToMed, scratch.clusterSizes, scratch.sorted, scratch.result);
+        stats.iterations++;
+        stats.cost = scratch.result.cost;
+        System.arraycopy(meds, 0, scratch.bestMeds, 0, meds.length);
+        System.arraycopy(scratch.clusterSizes, 0, scratch.bestSizes, 0, meds.length);
+    }
+
+    /**
+     * clusters a sample of options.previewPixels pixels and sends it as an intermediate palette, 
+     * its medoids are kept in startMeds for the first restart, unless options.seedWith already set them. 
+     * Its stats are sent with run -1, its cost isn't comparable with the restarts so it isn't a result
+     * @param random    random generator of the preview
+     */
+    private void runPreview(SplitMix64 random){
+        long start = System.nanoTime();
+        PixelSet sample = pixelSet.sample(options.previewPixels, null);
+        if(sample.size < clusters) return;
+
+        RunStats stats = new RunStats();
+        stats.run = -1;
+        ClusterScratch scratch = SCRATCH.get();
+        scratch.ensureCapacity(sample.size, clusters);
+        Arrays.fill(scratch.clusterIndex, 0, sample.size, -1);
+        setInitMedoids(scratch.meds, sample, scratch.seedDists, scratch.seedGen, random);
+        iterate(sample, scratch, stats, false, options.maxIterations);
+        stats.timeNanos = System.nanoTime() - start;
+        if(options.reportStats) emitStats(stats);
+        if(stats.cost == Double.MAX_VALUE) return;
+
+        //the sample is taken from the sorted colors of the image, so every medoid is one of them
+        int[] meds = new int[clusters];
+        final int[] colors = new int[clusters];
+        final int[] sizes = new int[clusters];
+        double scale = pixelSet.totalWeight / (double) sample.totalWeight;
+        for(int i = 0; i < clusters; i++){
+            colors[i] = sample.colors[scratch.bestMeds[i]];
+            sizes[i] = (int)Math.round(scratch.bestSizes[i] * scale);
+            meds[i] = Arrays.binarySearch(pixelSet.colors, 0, pixelSet.size, colors[i]);
+            if(meds[i] < 0) return;
+        }
+        if(isCancelled()) return;
+        if(startMeds == null) startMeds = meds;
+        emit(new Runnable(){
+            @Override
+            public void run(){
+                synchronized(emitLock){
+                    if(finalSent || cancelled) return;
+                    lastEmitNanos = System.nanoTime();
+                    paletteCallback.onPaletteGen(colors, sizes, false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a single restart on the calling thread, without pruning and without sending anything to the callback. 
+     * Used by PaletteSession for every frame, with a generator built once per session(without pixels)
+     * @param set           sorted colors of the frame with the options' metric, owned by the caller 
+     *                      and used by this generator until the next call
+     * @param startColors   palette to start from(ie. the last frame's), every color is mapped to the closest 
+     *                      unused color of the image. null seeds with options.seedWith or k-means++
+     * @param maxIterations max no of assignment passes(swap passes with FASTPAM)
+     * @param random        random generator for the k-means++ seeding and the swap candidates
+     * @param stats         filled with the iterations, cost and how the run ended
+     * @param colors        (size options.clusters) filled with the palette, in the order of startColors if it was used
+     * @param sizes         (size options.clusters) filled with the cluster sizes
+     * @return int          no of colors in the palette, 0 if there is no result
+     */
+    int runSingle(PixelSet set, int[] startColors, int maxIterations, SplitMix64 random, RunStats stats, int[] colors, int[] sizes){
+        pixelSet = set;
+        clusters = Math.min(options.clusters, set.size);
+        if(set.size == 0) return 0;
+        ClusterScratch scratch = SCRATCH.get();
+        scratch.ensureCapacity(pixelSet.size, clusters);
+        Arrays.fill(scratch.clusterIndex, 0, pixelSet.size, -1);
+
+        int[] meds = null;
+        if(startColors != null && startColors.length >= clusters) meds = pixelSet.closestColors(startColors, clusters);
+        else if(options.seedWith != null) meds = quantizerMedoids(options.seedWith.quantizer());
+        if(meds != null) System.arraycopy(meds, 0, scratch.meds, 0, clusters);
+        else setInitMedoids(scratch.meds, pixelSet, scratch.seedDists, scratch.seedGen, random);
+
+        if(options.engine == ClusterEngine.FASTPAM) swapMedoids(pixelSet, scratch, stats, maxIterations, random);
+        else iterate(pixelSet, scratch, stats, false, maxIterations);
+        if(stats.cost == Double.MAX_VALUE) return 0;
+        for(int i = 0; i < clusters; i++){
+            colors[i] = pixelSet.colors[scratch.bestMeds[i]];
+            sizes[i] = scratch.bestSizes[i];
+        }
+        return clusters;
+    }
+
+    /**
+     * Runs the quantizer engine on the calling thread(it takes a few ms), its palette is sent as the final one 
+     * through publish() like the result of a single restart. Its stats have a single iteration and no cost
+     */
+    private void runQuantizer(){
+        long start = System.nanoTime();
+        RunStats stats = new RunStats();
+        stats.run = 0;
+        try{
+            if(histogram == null || histogram.total == 0){
+                emitError(new IllegalArgumentException("Image has no pixels"));
+                return;
+            }
+            if(isCancelled()){
+                stats.cancelled = true;
+                return;
+            }
+            int[] colors = new int[clusters];
+            int[] sizes = new int[clusters];
+            int n = quantizer.quantize(histogram, clusters, colors, sizes);
+            stats.iterations = 1;
+            stats.converged = true;
+            best.set(new PaletteResult(0, 0, Arrays.copyOf(colors, n), Arrays.copyOf(sizes, n)));
+        }
+        catch(Exception e){
+            LOG.log(Level.WARNING, "Exception in quantizer", e);
+            emitError(e);
+        }
+        finally{
+            stats.timeNanos = System.nanoTime() - start;
+            if(metrics != null){
+                metrics.restart.record(stats.timeNanos);
+                metrics.restarts.incrementAndGet();
+                if(stats.cancelled) metrics.cancelledRestarts.incrementAndGet();
+            }
+            if(options.reportStats) emitStats(stats);
+            finished.incrementAndGet();
+            emit(publishTask);
+        }
+    }
+
+    /**
+     * Runs a quantizer on the colors of pixelSet and maps every quantizer color to the closest unused color 
+     * of the set(PixelSet.closestColors), which gives starting medoids that are usually close to converged
+     * @param q         quantizer to run
+     * @return int[]    (size clusters) medoids, indices into pixelSet. 
+     *                  Null if the quantizer found fewer than clusters colors
+     */
+    private int[] quantizerMedoids(Quantizer q){
+        int[] colors = new int[clusters];
+        int[] sizes = new int[clusters];
+        if(q.quantize(ColorHistogram.of(pixelSet), clusters, colors, sizes) < clusters) return null;
+        return pixelSet.closestColors(colors, clusters);
+    }
+
+    /**
+     * Called once by every restart when it exits(even if it was cancelled or failed). 
+     * A result that beats the best one replaces it with a compare-and-set, so the restarts never wait for each other, 
+     * and the palettes are sent by publish() on the emitter. 
+     * Restarts with the same cost are ordered by their index, so the final palette doesn't depend on the order they finish in
+     * @param run           index of the restart
+     * @param cost          total cost of the restart, Double.MAX_VALUE if it has no result
+     * @param meds          medoids of the restart
+     * @param clusterSizes  cluster sizes of the restart
+     */
+    private void finishRun(int run, double cost, int[] meds, int[] clusterSizes){
+        if(!isCancelled() && cost != Double.MAX_VALUE){
+            //the snapshot is only built once the result is known to be better
+            PaletteResult result = null;
+            while(true){
+                PaletteResult curr = best.get();
+                if(curr != null && !(cost < curr.cost || (cost == curr.cost && run < curr.run))) break;
+                if(result == null){
+                    int[] colors = new int[clusters];
+                    for(int i = 0; i < clusters; i++){
+                        colors[i] = pixelSet.colors[meds[i]];
+                    }
+                    result = new PaletteResult(run, cost, colors, Arrays.copyOf(clusterSizes, clusters));
+                }
+                if(best.compareAndSet(curr, result)) break;
+            }
+        }
+        finished.incrementAndGet();
+        emit(publishTask);
+    }
+
+    /**
+     * Sends the best result, runs one at a time(on the emitter or under emitLock). Once every restart has exited 
+     * it sends the final palette and onFinish, before that it sends the best result as an intermediate palette 
+     * if it is new and the last one was sent long enough ago(options.maxEmitsPerSecond). 
+     * A skipped result is sent by the next restart that finishes late enough
+     */
+    private void publish(){
+        synchronized(emitLock){
+            if(finalSent) return;
+            PaletteResult result = best.get();
+            //final callback is the one with the minimum cost clusters
+            if(finished.get() == restarts){
+                finalSent = true;
+                if(!cancelled && result != null) paletteCallback.onPaletteGen(result.colors, result.sizes, true);
+                paletteCallback.onFinish();
+                return;
+            }
+            if(result == null || result == lastEmitted || cancelled) return;
+            long now = System.nanoTime();
+            if(options.maxEmitsPerSecond == 0 || lastEmitNanos == 0 
+                    || now - lastEmitNanos >= 1000000000L / options.maxEmitsPerSecond){
+                lastEmitNanos = now;
+                lastEmitted = result;
+                paletteCallback.onPaletteGen(result.colors, result.sizes, false);
+            }
+        }
+    }
+
+    /**
+     * runs a callback task on the emitter, or right away if there is no emitter
+     */
+    private void emit(Runnable task){
+        if(emitter == null){
+            synchronized(emitLock){
+                task.run();
+            }
+        }
+        else emitter.execute(task);
+    }
+
+    private void emitStats(final RunStats stats){
+        emit(new Runnable(){
+            @Override
+            public void run(){
+                paletteCallback.onRunStats(stats);
+            }
+        });
+    }
+
+    private void emitError(final Exception e){
+        emit(new Runnable(){
+            @Override
+            public void run(){
+                paletteCallback.onError(e);
+            }
+        });
+    }
+
+    /**
+     * @return double   cost of the best result so far, Double.MAX_VALUE if there is none
+     */
+    private double bestCost(){
+        PaletteResult result = best.get();
+        return result == null ? Double.MAX_VALUE : result.cost;
+    }
+
+    /**
+   * chooses initial medoids using the k-means++ algorithm, every color counts as many times as its weight.
+   * minDists keeps the squared distance of every color to its closest medoid so far, so every new medoid 
+   * only needs one pass over the colors
+   * @param medArr      array of medoids that will be filled with initial medoids 
+   * @param pixelSet    weighted pixel colors
+   * @param minDists    (size pixelSet.size) buffer for the distances to the closest medoid
+   * @param gen         sampler used to pick the next medoid, reused for every medoid
+   * @param random      source of randomness for this run
+   */
+    void setInitMedoids(int[] medArr, PixelSet pixelSet, double[] minDists, DistributedRandomNumberGenerator gen, SplitMix64 random){
+        long start = System.nanoTime();
+        int[] pixelArr = pixelSet.colors;
+        int[] weights = pixelSet.weights;
+
+        //pick a random pixel, ie. a color with probability proportional to its weight
+        long first = (long)(random.nextDouble() * pixelSet.totalWeight);
+        int firstIdx = 0;
+        long cumWeight = weights[0];
+        while(cumWeight <= first && firstIdx < pixelSet.size - 1){
+            firstIdx++;
+            cumWeight += weights[firstIdx];
+        }
+        medArr[0] = firstIdx;
+        Arrays.fill(minDists, 0, pixelSet.size, Double.MAX_VALUE);
+        boolean packed = pixelSet.distance == ColorDistance.PACKED;
+        float[] xs = pixelSet.x, ys = pixelSet.y, zs = pixelSet.z;
+
+        for(int curr = 1; curr < medArr.length; curr++){
+            //only the newest medoid can be closer than the ones before it
+            int med = medArr[curr - 1];
+            gen.clear();
+            if(packed){
+                int medVal = pixelArr[med];
+                for(int i = 0; i < pixelSet.size; i++){
+                    double diff = (double)medVal - pixelArr[i];
+                    double sqDist = diff * diff;
+                    if(sqDist < minDists[i]) minDists[i] = sqDist;
+                    //medoids have a distance of 0, so they're never picked again
+                    gen.addNumber(minDists[i] * weights[i]);
+                }
+            }
+            else{
+                float mx = xs[med], my = ys[med], mz = zs[med];
+                for(int i = 0; i < pixelSet.size; i++){
+                    float dx = mx - xs[i], dy = my - ys[i], dz = mz - zs[i];
+                    double sqDist = dx * dx + dy * dy + dz * dz;
+                    if(sqDist < minDists[i]) minDists[i] = sqDist;
+                    gen.addNumber(minDists[i] * weights[i]);
+                }
+            }
+
+            medArr[curr] = gen.getDistributedRandomNumber(random);
+        }
+        if(metrics != null) metrics.seed.since(start);
+    }
+
+
+    /**
+   * puts every color in the cluster whose medoid is closest to that color, 
+   * also calculates and returns the total cost(ie. sum of distances between pixels and their medoids) 
+   * of the entire pixel array, every color counts as many times as its weight.
+   * If parallelAssign is set the colors are split into ranges that are assigned on the fork-join pool
+   * @param pixelSet        weighted pixel colors
+   * @param clusterArr      (size pixelSet.size) i'th element has the index(of an element in medoidArr) of the cluster 
+   *                        that the i'th color belongs to, -1 before the first pass
+   * @param medoidArr       (size clusters) i'th element has the index(of a color in pixelSet) thats the medoid of the i'th cluster
+   * @param diffArr         (size pixelSet.size) i'th element is the distance between the i'th color 
+   *                        and the medoid of the cluster it belongs to(squared distance for the euclidean metrics)
+   * @param clusterSizes    (size clusters) filled with the size(no of pixels) of every cluster
+   * @param sortedBuf       (size clusters) buffer for the sorted medoids, used with the packed metric
+   * @param res             filled with whether any pixels have changed clusters, 
+   *                        total cost, and no of pixels that changed clusters
+   */
+    void assignCluster(PixelSet pixelSet, int[] clusterArr, int[] medoidArr, double[] diffArr, int[] clusterSizes, 
+                               SortedMedoids sortedBuf, AssignResult res){
+        long start = System.nanoTime();
+        //the colors are sorted, so with the packed metric the closest medoid can be found with a sweep
+        SortedMedoids sorted = null;
+        if(pixelSet.distance == ColorDistance.PACKED && options.sortedAssign){
+            sorted = sortedBuf;
+            sorted.set(pixelSet.colors, medoidArr);
+        }
+
+        res.reset();
+        if(options.parallelAssign && assignPool != null && pixelSet.size > ASSIGN_CHUNK){
+            //the task tree is the only thing allocated per pass, a few small objects per ASSIGN_CHUNK colors
+            AssignTask task = new AssignTask(pixelSet, clusterArr, medoidArr, diffArr, sorted, 0, pixelSet.size);
+            assignPool.invoke(task);
+            System.arraycopy(task.sizes, 0, clusterSizes, 0, clusterSizes.length);
+            res.cost = task.res.cost;
+            res.moved = task.res.moved;
+        }
+        else{
+            Arrays.fill(clusterSizes, 0);
+            assignRange(pixelSet, clusterArr, medoidArr, diffArr, sorted, clusterSizes, 0, pixelSet.size, res);
+        }
+        res.changed = res.moved > 0;
+        if(metrics != null) metrics.assign.since(start);
+    }
+
+    /**
+     * assigns the colors in [from, to) to their closest medoid, see assignCluster
+     * @param sorted        medoids sorted by color, if not null the packed metric is assigned with a sweep
+     * @param clusterSizes  (size clusters) the weight of every color is added to the size of its cluster
+     * @param res           the cost of the range and the no of pixels that changed clusters are added to it
+     */
+    private static void assignRange(PixelSet pixelSet, int[] clusterArr, int[] medoidArr, double[] diffArr, SortedMedoids sorted,
+                                    int[] clusterSizes, int from, int to, AssignResult res){
+        int[] pixelArr = pixelSet.colors;
+        int[] weights = pixelSet.weights;
+        float[] xs = pixelSet.x, ys = pixelSet.y, zs = pixelSet.z;
+        long moved = 0;
+        double totalCost = 0;
+        //separate loops for the kinds of metric, so the metric isn't checked for every pixel
+        if(sorted != null){
+            int[] medVals = sorted.values;
+            int[] medIdx = sorted.index;
+            int[] groupStart = sorted.groupStart;
+            int k = medVals.length;
+            //first medoid whose color is >= the current color, moves forward as the colors increase
+            int p = sorted.lowerBound(pixelArr[from]);
+            for(int i = from; i < to; i++){
+                int pixel = pixelArr[i];
+                while(p < k && medVals[p] < pixel) p++;
+
+                //closest medoid is either the last one below the color or the first one at/above it,
+                //on a tie the medoid with the lower index wins(same as comparing against every medoid)
+                int best;
+                double bestDist;
+                if(p == 0){
+                    best = medIdx[0];
+                    bestDist = (double)medVals[0] - pixel;
+                }
+                else{
+                    int below = groupStart[p - 1];
+                    double belowDist = (double)pixel - medVals[below];
+                    if(p == k){
+                        best = medIdx[below];
+                        bestDist = belowDist;
+                    }
+                    else{
+                        double aboveDist = (double)medVals[p] - pixel;
+                        if(belowDist < aboveDist || (belowDist == aboveDist && medIdx[below] < medIdx[p])){
+                            best = medIdx[below];
+                            bestDist = belowDist;
+                        }
+                        else{
+                            best = medIdx[p];
+                            bestDist = aboveDist;
+                        }
+                    }
+                }
+
+                int w = weights[i];
+                if(clusterArr[i] != best){
+                    clusterArr[i] = best;
+                    moved += w;
+                }
+                diffArr[i] = bestDist;
+                clusterSizes[best] += w;
+                totalCost += bestDist * w;
+            }
+        }
+        else if(pixelSet.distance == ColorDistance.PACKED){
+            for(int i = from; i < to; i++){
+                int pixel = pixelArr[i];
+                int best = -1;
+                double bestDist = Double.MAX_VALUE;
+                for(int j = 0; j < medoidArr.length; j++){
+                    double dist = Math.abs((double)pixelArr[medoidArr[j]] - pixel);
+                    if(dist < bestDist){
+                        bestDist = dist;
+                        best = j;
+                    }
+                }
+                int w = weights[i];
+                if(clusterArr[i] != best){
+                    clusterArr[i] = best;
+                    moved += w;
+                }
+                diffArr[i] = bestDist;
+                clusterSizes[best] += w;
+                totalCost += bestDist * w;
+            }
+        }
+        else{
+            for(int i = from; i < to; i++){
+                float px = xs[i], py = ys[i], pz = zs[i];
+                int best = -1;
+                double bestDist = Double.MAX_VALUE;
+                for(int j = 0; j < medoidArr.length; j++){
+                    int med = medoidArr[j];
+                    float dx = xs[med] - px, dy = ys[med] - py, dz = zs[med] - pz;
+                    double dist = dx * dx + dy * dy + dz * dz;
+                    if(dist < bestDist){
+                        bestDist = dist;
+                        best = j;
+                    }
+                }
+                int w = weights[i];
+                if(clusterArr[i] != best){
+                    clusterArr[i] = best;
+                    moved += w;
+                }
+                diffArr[i] = bestDist;
+                clusterSizes[best] += w;
+                totalCost += Math.sqrt(bestDist) * w;
+            }
+        }
+        res.cost += totalCost;
+        res.moved += moved;
+    }
+
+    /**
+     * Assigns a range of colors on the fork-join pool. Ranges are split in half down to ASSIGN_CHUNK colors, 
+     * every range has its own cluster sizes and cost which are merged into the parent range when both halves 
+     * are done. The split only depends on the no of colors, so the cost is the same no matter how many threads ran it
+     */
+    private static class AssignTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final PixelSet pixelSet;
+        private final int[] clusterArr, medoidArr;
+        private final double[] diffArr;
+        private final SortedMedoids sorted;
+        private final int from, to;
+        final int[] sizes;
+        final AssignResult res = new AssignResult();
+
+        AssignTask(PixelSet pixelSet, int[] clusterArr, int[] medoidArr, double[] diffArr, SortedMedoids sorted, int from, int to){
+            this.pixelSet = pixelSet;
+            this.clusterArr = clusterArr;
+            this.medoidArr = medoidArr;
+            this.diffArr = diffArr;
+            this.sorted = sorted;
+            this.from = from;
+            this.to = to;
+            this.sizes = new int[medoidArr.length];
+        }
+
+        @Override
+        protected void compute(){
+            if(to - from <= ASSIGN_CHUNK){
+                assignRange(pixelSet, clusterArr, medoidArr, diffArr, sorted, sizes, from, to, res);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            AssignTask left = new AssignTask(pixelSet, clusterArr, medoidArr, diffArr, sorted, from, mid);
+            AssignTask right = new AssignTask(pixelSet, clusterArr, medoidArr, diffArr, sorted, mid, to);
+            invokeAll(left, right);
+            for(int j = 0; j < sizes.length; j++){
+                sizes[j] = left.sizes[j] + right.sizes[j];
+            }
+            res.cost = left.res.cost + right.res.cost;
+            res.moved = left.res.moved + right.res.moved;
+        }
+    }
+
+    /**
+     * Result of a restart, never changed after it is created so it can be read by the emitter 
+     * while the restarts go on(the palette arrays are passed to the callback as they are)
+     */
+    private static final class PaletteResult{
+        final int run;
+        final double cost;
+        final int[] colors;
+        final int[] sizes;
+
+        PaletteResult(int run, double cost, int[] colors, int[] sizes){
+            this.run = run;
+            this.cost = cost;
+            this.colors = colors;
+            this.sizes = sizes;
+        }
+    }
+
+    /**
+     * Medoid colors in ascending order, used to assign sorted colors under the packed metric 
+     * with a single sweep(O(n + k)) instead of comparing every color with every medoid(O(n * k))
+     */
+    static class SortedMedoids {
+        //medoid colors, sorted
+        final int[] values;
+        //i'th element is the cluster(index in medoidArr) of the i'th sorted medoid
+        final int[] index;
+        //i'th element is the first sorted position with the same color as position i,
+        //medoids with the same color are sorted by cluster index so that's the lowest cluster
+        final int[] groupStart;
+
+        SortedMedoids(int clusters){
+            values = new int[clusters];
+            index = new int[clusters];
+            groupStart = new int[clusters];
+        }
+
+        /**
+         * sorts the medoids of a pass
+         * @param colors        colors of the PixelSet
+         * @param medoidArr     (size clusters) medoids
+         */
+        void set(int[] colors, int[] medoidArr){
+            int k = medoidArr.length;
+            //insertion sort by (color, cluster index), k is small
+            for(int j = 0; j < k; j++){
+                int val = colors[medoidArr[j]];
+                int pos = j;
+                while(pos > 0 && values[pos - 1] > val){
+                    values[pos] = values[pos - 1];
+                    index[pos] = index[pos - 1];
+                    pos--;
+                }
+                values[pos] = val;
+                index[pos] = j;
+            }
+            for(int j = 0; j < k; j++){
+                groupStart[j] = (j > 0 && values[j] == values[j - 1]) ? groupStart[j - 1] : j;
+            }
+        }
+
+        /**
+         * @param color     color to look for
+         * @return int      first sorted position whose color is >= color(values.length if there's none)
+         */
+        int lowerBound(int color){
+            int lo = 0, hi = values.length;
+            while(lo < hi){
+                int mid = (lo + hi) >>> 1;
+                if(values[mid] < color) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * calculates new medoids for each cluster from the last assignment(scratch.clusterIndex, scratch.diffToMed 
+     * and scratch.clusterSizes), under the metric of the set. A medoid is only replaced if that lowers the cost of its cluster
+     * @param pixelSet      weighted pixel colors
+     * @param scratch       buffers of this thread, scratch.meds is updated
+     */
+    void calcMedoids(PixelSet pixelSet, ClusterScratch scratch){
+        if(pixelSet.distance == ColorDistance.PACKED){
+            medianMedoids(pixelSet, scratch.clusterIndex, scratch.meds, scratch.clusterSizes, scratch.clustCounter, scratch.medsCalc);
+        }
+        else{
+            metricMedoids(pixelSet, scratch);
+        }
+    }
+
+    /**
+     * packed metric: the medoid is the weighted median color of the cluster, which is the member with the lowest cost 
+     * as the distance is the difference of the packed colors
+     * @param pixelSet      weighted pixel colors
+     * @param clusterArr    (size pixelSet.size) i'th element has the index(of an element in medoidArr) of the cluster 
+     *                      that the i'th color belongs to
+     * @param medoidArr     (size clusters) i'th element has the index(of a color in pixelSet) thats the medoid of the i'th cluster
+     * @param clusterSizes  (size clusters) i'th element is the size(no of pixels) of the i'th cluster
+     * @param clustCounter  (size clusters) buffer for the no of pixels seen in every cluster
+     * @param medsCalc      (size clusters) buffer for whether the medoid of every cluster is done
+     */
+    private static void medianMedoids(PixelSet pixelSet, int[]clusterArr, int[] medoidArr, int[] clusterSizes, long[] clustCounter, boolean[] medsCalc){
+        int[] weights = pixelSet.weights;
+        Arrays.fill(clustCounter, 0);
+        Arrays.fill(medsCalc, false);
+        int clustDone = 0;
+        for(int i = 0; i < pixelSet.size; i++){
+            
+            int cId = clusterArr[i];
+            if(medsCalc[cId]) continue;
+
+            clustCounter[cId] += weights[i];
+            int mid = clusterSizes[cId] / 2;
+            
+            if(clustCounter[cId] >= mid){
+                medoidArr[cId] = i;
+                medsCalc[cId] = true;
+                clustDone += 1;
+            }
+
+            if(clustDone >= medoidArr.length) break;
+        }
+    }
+
+    /**
+     * euclidean metrics: the best medoid is the member closest to the geometric median of the cluster, which has no closed form. 
+     * A Weiszfeld step from the current medoid(average of the members weighted by pixel count / distance) moves towards it, 
+     * the member closest to that point is the new medoid if it lowers the cost of the cluster. 
+     * Takes 3 passes over the colors, the distances to the current medoids come from the assignment
+     * @param pixelSet      weighted pixel colors, with coordinates
+     * @param scratch       buffers of this thread, scratch.meds is updated
+     */
+    private static void metricMedoids(PixelSet pixelSet, ClusterScratch scratch){
+        int[] clusterArr = scratch.clusterIndex;
+        int[] meds = scratch.meds;
+        double[] diffArr = scratch.diffToMed;
+        double[] sums = scratch.medSums;
+        double[] medCost = scratch.medCost, candCost = scratch.candidateCost;
+        int[] cand = scratch.medCandidate;
+        int[] weights = pixelSet.weights;
+        float[] xs = pixelSet.x, ys = pixelSet.y, zs = pixelSet.z;
+        int n = pixelSet.size, k = meds.length;
+
+        //cost of every cluster and the sums of the Weiszfeld step
+        Arrays.fill(sums, 0, 4 * k, 0);
+        Arrays.fill(medCost, 0, k, 0);
+        for(int i = 0; i < n; i++){
+            int c = clusterArr[i];
+            double d = Math.sqrt(diffArr[i]);
+            medCost[c] += d * weights[i];
+            //the medoid itself(and any color at the same point) doesn't pull the step
+            if(d == 0) continue;
+            double a = weights[i] / d;
+            sums[4 * c] += a * xs[i];
+            sums[4 * c + 1] += a * ys[i];
+            sums[4 * c + 2] += a * zs[i];
+            sums[4 * c + 3] += a;
+        }
+        for(int c = 0; c < k; c++){
+            double a = sums[4 * c + 3];
+            if(a > 0){
+                sums[4 * c] /= a;
+                sums[4 * c + 1] /= a;
+                sums[4 * c + 2] /= a;
+            }
+            cand[c] = -1;
+            //squared distance of the closest member to the step for now
+            candCost[c] = Double.MAX_VALUE;
+        }
+
+        //member closest to the step of its cluster
+        for(int i = 0; i < n; i++){
+            int c = clusterArr[i];
+            if(sums[4 * c + 3] == 0) continue;
+            double dx = xs[i] - sums[4 * c], dy = ys[i] - sums[4 * c + 1], dz = zs[i] - sums[4 * c + 2];
+            double d = dx * dx + dy * dy + dz * dz;
+            if(d < candCost[c]){
+                candCost[c] = d;
+                cand[c] = i;
+            }
+        }
+
+        //cost of every cluster with its candidate as the medoid
+        int changed = 0;
+        for(int c = 0; c < k; c++){
+            if(cand[c] == meds[c]) cand[c] = -1;
+            if(cand[c] >= 0) changed++;
+            candCost[c] = 0;
+        }
+        if(changed == 0) return;
+        for(int i = 0; i < n; i++){
+            int c = clusterArr[i];
+            int m = cand[c];
+            if(m < 0) continue;
+            float dx = xs[i] - xs[m], dy = ys[i] - ys[m], dz = zs[i] - zs[m];
+            candCost[c] += Math.sqrt(dx * dx + dy * dy + dz * dz) * weights[i];
+        }
+        for(int c = 0; c < k; c++){
+            if(cand[c] >= 0 && candCost[c] < medCost[c]) meds[c] = cand[c];
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.colorpaletteandroid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Median cut: starts with a box around all the colors of the histogram and keeps splitting a box
+ * at the median of its longest side until there are k boxes, the palette is the mean color of every box. 
+ * The first half of the splits goes to the boxes with the most pixels, the rest to the boxes with the most pixels * volume,
+ * so that small but distinct colors get their own box instead of more shades of the dominant color
+ */
+final class MedianCutQuantizer implements Quantizer {
+
+    @Override
+    public int quantize(ColorHistogram histogram, int k, int[] colors, int[] sizes){
+        if(histogram.total == 0) return 0;
+        List<Box> boxes = new ArrayList<>(k);
+        Box all = new Box(0, ColorHistogram.SIDE - 1, 0, ColorHistogram.SIDE - 1, 0, ColorHistogram.SIDE - 1);
+        all.shrink(histogram);
+        boxes.add(all);
+
+        while(boxes.size() < k){
+            boolean byVolume = boxes.size() >= k / 2;
+            Box largest = null;
+            double largestScore = 0;
+            for(Box box : boxes){
+                //boxes are shrunk to their colors, so a box longer than 1 bin has colors on both ends
+                if(box.longestSide() <= 1) continue;
+                double score = byVolume ? (double) box.count * box.volume() : box.count;
+                if(largest == null || score > largestScore){
+                    largest = box;
+                    largestScore = score;
+                }
+            }
+            if(largest == null) break;
+            boxes.add(largest.split(histogram));
+        }
+
+        for(int i = 0; i < boxes.size(); i++){
+            colors[i] = boxes.get(i).meanColor(histogram);
+            sizes[i] = (int) boxes.get(i).count;
+        }
+        return boxes.size();
+    }
+
+    /**
+     * Box of histogram bins, the bounds are inclusive
+     */
+    private static final class Box {
+        int r0, r1, g0, g1, b0, b1;
+        //no of pixels in the box
+        long count;
+
+        Box(int r0, int r1, int g0, int g1, int b0, int b1){
+            this.r0 = r0; this.r1 = r1;
+            this.g0 = g0; this.g1 = g1;
+            this.b0 = b0; this.b1 = b1;
+        }
+
+        long volume(){
+            return (long)(r1 - r0 + 1) * (g1 - g0 + 1) * (b1 - b0 + 1);
+        }
+
+        int longestSide(){
+            return Math.max(r1 - r0, Math.max(g1 - g0, b1 - b0)) + 1;
+        }
+
+        /**
+         * shrinks the box to the bins that have pixels and counts them
+         */
+        void shrink(ColorHistogram h){
+            int nr0 = r1, nr1 = r0, ng0 = g1, ng1 = g0, nb0 = b1, nb1 = b0;
+            count = 0;
+            for(int r = r0; r <= r1; r++){
+                for(int g = g0; g <= g1; g++){
+                    int base = ColorHistogram.index(r, g, 0);
+                    for(int b = b0; b <= b1; b++){
+                        long c = h.counts[base + b];
+                        if(c == 0) continue;
+                        count += c;
+                        if(r < nr0) nr0 = r;
+                        if(r > nr1) nr1 = r;
+                        if(g < ng0) ng0 = g;
+                        if(g > ng1) ng1 = g;
+                        if(b < nb0) nb0 = b;
+                        if(b > nb1) nb1 = b;
+                    }
+                }
+            }
+            if(count == 0) return;
+            r0 = nr0; r1 = nr1; g0 = ng0; g1 = ng1; b0 = nb0; b1 = nb1;
+        }
+
+        /**
+         * splits the box at the median of its longest side, this box keeps the lower half
+         * @return Box  the upper half
+         */
+        Box split(ColorHistogram h){
+            int axis, lo, hi;
+            if(r1 - r0 >= g1 - g0 && r1 - r0 >= b1 - b0){ axis = 0; lo = r0; hi = r1; }
+            else if(g1 - g0 >= b1 - b0){ axis = 1; lo = g0; hi = g1; }
+            else{ axis = 2; lo = b0; hi = b1; }
+
+            //no of pixels in every slice of the box along the axis
+            long[] slices = new long[hi - lo + 1];
+            for(int r = r0; r <= r1; r++){
+                for(int g = g0; g <= g1; g++){
+                    int base = ColorHistogram.index(r, g, 0);
+                    for(int b = b0; b <= b1; b++){
+                        int slice = axis == 0 ? r : axis == 1 ? g : b;
+                        slices[slice - lo] += h.counts[base + b];
+                    }
+                }
+            }
+            //last slice of the lower half, at least the first slice and at most the one before the last
+            int cut = lo;
+            long below = slices[0];
+            while(cut < hi - 1 && below * 2 < count){
+                cut++;
+                below += slices[cut - lo];
+            }
+
+            Box upper = new Box(r0, r1, g0, g1, b0, b1);
+            if(axis == 0){ r1 = cut; upper.r0 = cut + 1; }
+            else if(axis == 1){ g1 = cut; upper.g0 = cut + 1; }
+            else{ b1 = cut; upper.b0 = cut + 1; }
+            shrink(h);
+            upper.shrink(h);
+            return upper;
+        }
+
+        int meanColor(ColorHistogram h){
+            long r = 0, g = 0, b = 0;
+            for(int ri = r0; ri <= r1; ri++){
+                for(int gi = g0; gi <= g1; gi++){
+                    int base = ColorHistogram.index(ri, gi, 0);
+                    for(int bi = b0; bi <= b1; bi++){
+                        r += h.rSum[base + bi];
+                        g += h.gSum[base + bi];
+                        b += h.bSum[base + bi];
+                    }
+                }
+            }
+            return ColorHistogram.meanColor(r, g, b, count);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.colorpaletteandroid;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timers and counters of the palette generation, shared by all the requests of the module.
+ * Recording is lock-free(a few atomic adds and a write into a ring of recent samples),
+ * the percentiles and throughput are computed from the ring when a snapshot is taken, so they
+ * cover the last SAMPLES events of every timer and are approximate while events are being recorded.
+ */
+public class MetricsRegistry {
+    //time to decode the image into a bitmap
+    public final Timer decode = new Timer("decode");
+    //time to copy the pixels out of the bitmap
+    public final Timer extract = new Timer("extract");
+    //time to sort the pixels
+    public final Timer sort = new Timer("sort");
+    //time of every k-means++ seeding
+    public final Timer seed = new Timer("seed");
+    //time of every assignment pass
+    public final Timer assign = new Timer("assign");
+    //time of every swap pass of the FASTPAM engine
+    public final Timer swap = new Timer("swap");
+    //time of every restart
+    public final Timer restart = new Timer("restart");
+    //time to send a palette to JS
+    public final Timer emit = new Timer("emit");
+    //time from the start of a request to its final palette
+    public final Timer palette = new Timer("palette");
+    //time to cluster a frame of a streaming session
+    public final Timer frame = new Timer("frame");
+
+    public final AtomicLong restarts = new AtomicLong();
+    public final AtomicLong prunedRestarts = new AtomicLong();
+    public final AtomicLong cancelledRestarts = new AtomicLong();
+    //no of errors sent to JS
+    public final AtomicLong errors = new AtomicLong();
+    //requests cancelled by a newer request with the same key, or by a cancel call
+    public final AtomicLong cancelledRequests = new AtomicLong();
+    //frames of the streaming sessions that were replaced by a newer frame before they were clustered, 
+    //frames clustered from scratch because of a scene change, and frames whose palette wasn't sent as it barely changed
+    public final AtomicLong droppedFrames = new AtomicLong();
+    public final AtomicLong reseededFrames = new AtomicLong();
+    public final AtomicLong unchangedFrames = new AtomicLong();
+
+    /**
+     * @return Timer[]  all the timers
+     */
+    public Timer[] timers(){
+        return new Timer[]{decode, extract, sort, seed, assign, swap, restart, emit, palette, frame};
+    }
+
+    /**
+     * Durations of an event, keeps a count, a total and the last SAMPLES durations with the time they were recorded
+     */
+    public static final class Timer {
+        //no of recent samples kept, a power of 2
+        static final int SAMPLES = 1024;
+        //throughput is the no of events in this window
+        private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+        public final String name;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLongArray durations = new AtomicLongArray(SAMPLES);
+        private final AtomicLongArray times = new AtomicLongArray(SAMPLES);
+
+        Timer(String name){
+            this.name = name;
+        }
+
+        /**
+         * @param nanos     duration of the event
+         */
+        public void record(long nanos){
+            int slot = (int)(count.getAndIncrement() & (SAMPLES - 1));
+            durations.lazySet(slot, nanos);
+            times.lazySet(slot, System.nanoTime());
+            totalNanos.addAndGet(nanos);
+        }
+
+        /**
+         * records the time since start
+         * @param start     System.nanoTime() at the start of the event
+         */
+        public void since(long start){
+            record(System.nanoTime() - start);
+        }
+
+        /**
+         * @return Snapshot     counts, mean, percentiles of the recent samples and events per second in the last minute
+         */
+        public Snapshot snapshot(){
+            long n = count.get();
+            int samples = (int)Math.min(n, SAMPLES);
+            long[] recent = new long[samples];
+            long now = System.nanoTime();
+            int inWindow = 0;
+            for(int i = 0; i < samples; i++){
+                recent[i] = durations.get(i);
+                if(now - times.get(i) <= WINDOW_NANOS) inWindow++;
+            }
+            Arrays.sort(recent);
+
+            Snapshot snap = new Snapshot();
+            snap.count = n;
+            snap.meanNanos = n == 0 ? 0 : totalNanos.get() / (double) n;
+            snap.p50Nanos = percentile(recent, 0.50);
+            snap.p95Nanos = percentile(recent, 0.95);
+            snap.p99Nanos = percentile(recent, 0.99);
+            snap.maxNanos = samples == 0 ? 0 : recent[samples - 1];
+            snap.perSecond = inWindow / (double) TimeUnit.NANOSECONDS.toSeconds(WINDOW_NANOS);
+            return snap;
+        }
+
+        //nearest-rank percentile of sorted samples
+        private static long percentile(long[] sorted, double p){
+            if(sorted.length == 0) return 0;
+            int rank = (int)Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+        }
+    }
+
+    /**
+     * Stats of a timer at the time the snapshot was taken
+     */
+    public static class Snapshot {
+        //no of events since the module started
+        public long count;
+        //mean over all the events
+        public double meanNanos;
+        //percentiles and max of the recent events
+        public long p50Nanos, p95Nanos, p99Nanos, maxNanos;
+        //events per second in the last minute(can't be more than Timer.SAMPLES per minute)
+        public double perSecond;
+    }
+}
@@ -0,0 +1,144 @@
+package com.colorpaletteandroid;
+
+import java.util.Arrays;
+
+/**
+ * Octree quantizer: the histogram bins are the leaves of an octree 5 levels deep(a node at level L has
+ * L bits per channel). While there are more than k leaves, the nodes of the deepest level that still has
+ * children are merged one at a time into single leaves, the nodes with the fewest pixels first. A merge that 
+ * would go below k leaves only merges the children with the fewest pixels, so the palette has 
+ * min(k, no of non empty bins) colors, the mean color of every leaf
+ */
+final class OctreeQuantizer implements Quantizer {
+
+    @Override
+    public int quantize(ColorHistogram histogram, int k, int[] colors, int[] sizes){
+        if(histogram.total == 0) return 0;
+        int depth = ColorHistogram.BITS;
+        //no of pixels, channel sums and no of non empty children of every node, by level
+        long[][] counts = new long[depth + 1][];
+        long[][] rSums = new long[depth + 1][];
+        long[][] gSums = new long[depth + 1][];
+        long[][] bSums = new long[depth + 1][];
+        int[][] children = new int[depth][];
+        counts[depth] = histogram.counts;
+        rSums[depth] = histogram.rSum;
+        gSums[depth] = histogram.gSum;
+        bSums[depth] = histogram.bSum;
+        for(int level = depth - 1; level >= 0; level--){
+            int nodes = 1 << (3 * level);
+            counts[level] = new long[nodes];
+            rSums[level] = new long[nodes];
+            gSums[level] = new long[nodes];
+            bSums[level] = new long[nodes];
+            children[level] = new int[nodes];
+            for(int child = 0; child < counts[level + 1].length; child++){
+                if(counts[level + 1][child] == 0) continue;
+                int parent = parent(child, level + 1);
+                counts[level][parent] += counts[level + 1][child];
+                rSums[level][parent] += rSums[level + 1][child];
+                gSums[level][parent] += gSums[level + 1][child];
+                bSums[level][parent] += bSums[level + 1][child];
+                children[level][parent]++;
+            }
+        }
+
+        //leaves of the tree by level, at first the non empty histogram bins
+        boolean[][] leaf = new boolean[depth + 1][];
+        for(int level = 0; level <= depth; level++){
+            leaf[level] = new boolean[counts[level].length];
+        }
+        int leaves = 0;
+        for(int node = 0; node < counts[depth].length; node++){
+            if(counts[depth][node] > 0){
+                leaf[depth][node] = true;
+                leaves++;
+            }
+        }
+        //pixels and channel sums of the leaf made by the last merge if it only merged some of the children
+        long partCount = 0, partR = 0, partG = 0, partB = 0;
+        int[] octants = new int[8];
+        for(int level = depth - 1; level >= 0 && leaves > k; level--){
+            //every non empty node of the level below is a leaf now, merge the nodes of this level one at a time 
+            //by ascending no of pixels(count in the high bits, node in the low 15)
+            long[] order = new long[counts[level].length];
+            int n = 0;
+            for(int node = 0; node < order.length; node++){
+                if(counts[level][node] > 0) order[n++] = counts[level][node] << 15 | node;
+            }
+            Arrays.sort(order, 0, n);
+            for(int i = 0; i < n && leaves > k; i++){
+                int node = (int)(order[i] & 0x7FFF);
+                int excess = leaves - k;
+                if(children[level][node] - 1 <= excess){
+                    for(int octant = 0; octant < 8; octant++){
+                        leaf[level + 1][child(node, level, octant)] = false;
+                    }
+                    leaf[level][node] = true;
+                    leaves -= children[level][node] - 1;
+                    continue;
+                }
+                //merging every child would go below k, so only the excess + 1 children with the fewest pixels 
+                //are merged(count in the high bits, octant in the low 3)
+                long[] byCount = new long[8];
+                int c = 0;
+                for(int octant = 0; octant < 8; octant++){
+                    int child = child(node, level, octant);
+                    if(counts[level + 1][child] > 0) byCount[c++] = counts[level + 1][child] << 3 | octant;
+                }
+                Arrays.sort(byCount, 0, c);
+                for(int j = 0; j <= excess; j++){
+                    int child = child(node, level, (int)(byCount[j] & 7));
+                    leaf[level + 1][child] = false;
+                    partCount += counts[level + 1][child];
+                    partR += rSums[level + 1][child];
+                    partG += gSums[level + 1][child];
+                    partB += bSums[level + 1][child];
+                }
+                leaves = k;
+            }
+        }
+
+        int n = 0;
+        for(int level = 0; level <= depth; level++){
+            for(int node = 0; node < counts[level].length; node++){
+                if(!leaf[level][node]) continue;
+                colors[n] = ColorHistogram.meanColor(rSums[level][node], gSums[level][node], bSums[level][node], counts[level][node]);
+                sizes[n++] = (int) counts[level][node];
+            }
+        }
+        if(partCount > 0){
+            colors[n] = ColorHistogram.meanColor(partR, partG, partB, partCount);
+            sizes[n++] = (int) partCount;
+        }
+        return n;
+    }
+
+    /**
+     * @param node      node at the level, its channels have level bits each(packed like ColorHistogram.index)
+     * @param level     level of the node, < ColorHistogram.BITS
+     * @param octant    which child, one bit per channel(r, g, b from the high bit)
+     * @return int      the child node at level + 1
+     */
+    private static int child(int node, int level, int octant){
+        int mask = (1 << level) - 1;
+        int r = (node >> (2 * level)) & mask, g = (node >> level) & mask, b = node & mask;
+        int cl = level + 1;
+        r = r << 1 | (octant >> 2);
+        g = g << 1 | ((octant >> 1) & 1);
+        b = b << 1 | (octant & 1);
+        return (r << (2 * cl)) | (g << cl) | b;
+    }
+
+    /**
+     * @param node      node at the level, its channels have level bits each(packed like ColorHistogram.index)
+     * @param level     level of the node, > 0
+     * @return int      the parent node at level - 1
+     */
+    private static int parent(int node, int level){
+        int mask = (1 << level) - 1;
+        int r = (node >> (2 * level)) & mask, g = (node >> level) & mask, b = node & mask;
+        int pl = level - 1;
+        return ((r >> 1) << (2 * pl)) | ((g >> 1) << pl) | (b >> 1);
+    }
+}
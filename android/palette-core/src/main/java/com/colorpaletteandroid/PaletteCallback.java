@@ -0,0 +1,17 @@
+package com.colorpaletteandroid;
+
+/**
+ * Interface to send data from worker threads to main thread. 
+ * onPaletteGen is called by the worker threads after a color palette has been generated
+ * onError is called after an Exception 
+ * onRunStats is called after every clustering run if PaletteOptions.reportStats is set
+ * onFinish is called once after everything else, when the job is done(even if it failed or was cancelled)
+ * The calls of a job never overlap, they run on the emitter thread if GenColorPalette has one. 
+ * The palette arrays are never changed after they are passed, so they can be kept without copying
+ */
+interface PaletteCallback{
+    void onPaletteGen(int[] palette,int[] clusterSizes, boolean Final);
+    void onError(Exception e);
+    void onRunStats(RunStats stats);
+    void onFinish();
+}
\ No newline at end of file
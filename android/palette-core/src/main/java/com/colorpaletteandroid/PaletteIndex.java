@@ -0,0 +1,518 @@
+package com.colorpaletteandroid;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Persistent index of palettes by image id, finds the palettes closest to a query palette without comparing it
+ * to every palette. Every palette is posted to the coarse RGB cells(8 levels per channel) of its main colors,
+ * a query adds up the shares it has in common with the palettes posted to its own cells, and only the best of
+ * those candidates are reranked with the palette distance(see distance()).
+ *
+ * Everything is kept in 2 memory-mapped files in the index directory, so opening the index doesn't read it:
+ * palettes.dat has a header with the last posting block of every cell, followed by 256 byte units that are
+ * either a palette record(id, up to MAX_COLORS colors with their shares) or a block of postings(packed unit
+ * no and share) linked to the cell's previous block. ids.dat is an open addressing table from the hash of
+ * every id to its record. Putting an id that is already indexed marks the old record deleted and adds a new one,
+ * the space of deleted records isn't reused. Not thread safe beyond every method being synchronized
+ */
+public class PaletteIndex implements Closeable {
+    //max no of colors kept per palette, the largest clusters
+    public static final int MAX_COLORS = 16;
+    //max length of an id, in UTF-8 bytes
+    public static final int MAX_ID_BYTES = 156;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x50494458;
+    private static final int VERSION = 1;
+    private static final int UNIT = 256;
+    //the units are addressed with int offsets into a single mapping, which can't be longer than Integer.MAX_VALUE
+    private static final int MAX_UNITS = (1 << 23) - 1;
+
+    //the coarse cells have CELL_BITS per channel
+    private static final int CELL_BITS = 3;
+    private static final int CELLS = 1 << (3 * CELL_BITS);
+    //colors with a smaller share aren't posted(unless it is the largest color of the palette)
+    private static final double MIN_POSTED_SHARE = 0.05;
+    //a query color within this distance of a cell border also looks in the neighbouring cell
+    private static final int BORDER = 12;
+    //no of best candidates that are reranked
+    private static final int MAX_CANDIDATES = 1000;
+
+    //header: magic, version, no of units in use, no of live records, then the last block of every cell(0 for none)
+    private static final int H_UNITS = 8, H_RECORDS = 12, H_HEADS = 16;
+    private static final int HEADER_UNITS = (H_HEADS + 4 * CELLS + UNIT - 1) / UNIT;
+
+    private static final byte TYPE_RECORD = 1, TYPE_DELETED = 2, TYPE_BLOCK = 3;
+    //record: type, no of colors, id length, id, colors, shares(of 65535)
+    private static final int R_COLORS = 1, R_ID_LENGTH = 2, R_ID = 4;
+    private static final int R_ARGB = R_ID + MAX_ID_BYTES;
+    private static final int R_SHARES = R_ARGB + 4 * MAX_COLORS;
+    //posting block: type, no of postings, previous block of the cell, postings(unit << 8 | share of 255)
+    private static final int B_COUNT = 4, B_PREV = 8, B_POSTINGS = 12;
+    private static final int BLOCK_POSTINGS = (UNIT - B_POSTINGS) / 4;
+
+    //id table: magic, capacity(a power of 2), no of ids, then entries of hash(0 for empty) and unit
+    private static final int T_CAPACITY = 4, T_SIZE = 8, T_ENTRIES = 16, T_ENTRY = 16;
+    private static final int MIN_TABLE_CAPACITY = 1024;
+
+    private RandomAccessFile dataFile, idFile;
+    private MappedByteBuffer data, ids;
+    private final float[] coords = new float[3];
+
+    /**
+     * opens the index in the directory, creating it if it doesn't exist
+     * @param dir       directory of the index files
+     * @throws IOException if the files can't be opened or aren't a palette index
+     */
+    public PaletteIndex(File dir) throws IOException{
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create " + dir);
+        try{
+            dataFile = new RandomAccessFile(new File(dir, "palettes.dat"), "rw");
+            idFile = new RandomAccessFile(new File(dir, "ids.dat"), "rw");
+            if(dataFile.length() == 0){
+                data = map(dataFile, (long) UNIT * (HEADER_UNITS + 1024));
+                data.putInt(0, MAGIC);
+                data.putInt(4, VERSION);
+                data.putInt(H_UNITS, HEADER_UNITS);
+                data.putInt(H_RECORDS, 0);
+            }
+            else data = map(dataFile, dataFile.length());
+            if(idFile.length() == 0){
+                ids = map(idFile, T_ENTRIES + (long) T_ENTRY * MIN_TABLE_CAPACITY);
+                ids.putInt(0, MAGIC);
+                ids.putInt(T_CAPACITY, MIN_TABLE_CAPACITY);
+                ids.putInt(T_SIZE, 0);
+            }
+            else ids = map(idFile, idFile.length());
+            if(data.getInt(0) != MAGIC || data.getInt(4) != VERSION || ids.getInt(0) != MAGIC){
+                throw new IOException("Not a palette index: " + dir);
+            }
+        }
+        catch(IOException e){
+            close();
+            throw e;
+        }
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile file, long size) throws IOException{
+        return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * A palette found by query()
+     */
+    public static final class Match {
+        public final String id;
+        //palette distance to the query
+        public final double distance;
+
+        Match(String id, double distance){
+            this.id = id;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * @return int  no of palettes in the index
+     */
+    public synchronized int size(){
+        return data.getInt(H_RECORDS);
+    }
+
+    /**
+     * adds the palette of an image, replacing the palette it had
+     * @param id        image id(eg. its uri), at most MAX_ID_BYTES in UTF-8
+     * @param colors    palette colors(ARGB)
+     * @param sizes     size of every cluster, only the MAX_COLORS largest ones are kept
+     * @throws IllegalArgumentException if the id is too long or the palette is empty
+     * @throws IOException if the index files can't be grown
+     */
+    public synchronized void put(String id, int[] colors, int[] sizes) throws IOException{
+        byte[] idBytes = id.getBytes(UTF_8);
+        if(idBytes.length > MAX_ID_BYTES) throw new IllegalArgumentException("Id is longer than " + MAX_ID_BYTES + " bytes: " + id);
+        Palette p = Palette.of(colors, sizes);
+        if(p.n == 0) throw new IllegalArgumentException("Palette has no colors");
+
+        long hash = hash(idBytes);
+        int old = findId(hash, idBytes);
+        //the same palette again(ie. from the palette cache) doesn't use up a new record
+        if(old > 0 && read(old * UNIT).sameAs(p)) return;
+        int unit = allocate();
+        int base = unit * UNIT;
+        data.put(base + R_COLORS, (byte) p.n);
+        data.putShort(base + R_ID_LENGTH, (short) idBytes.length);
+        for(int i = 0; i < idBytes.length; i++){
+            data.put(base + R_ID + i, idBytes[i]);
+        }
+        for(int i = 0; i < p.n; i++){
+            data.putInt(base + R_ARGB + 4 * i, p.colors[i]);
+            data.putShort(base + R_SHARES + 2 * i, (short) Math.round(p.shares[i] * 65535));
+        }
+        //the type is written last, so a record is only valid once it is complete
+        data.put(base, TYPE_RECORD);
+
+        //the share of every cell, the largest color is always posted
+        float[] cellShares = new float[CELLS];
+        for(int i = 0; i < p.n; i++){
+            if(i == 0 || p.shares[i] >= MIN_POSTED_SHARE) cellShares[cell(p.colors[i])] += p.shares[i];
+        }
+        for(int c = 0; c < CELLS; c++){
+            if(cellShares[c] > 0) post(c, unit, cellShares[c]);
+        }
+
+        if(old > 0) data.put(old * UNIT, TYPE_DELETED);
+        else data.putInt(H_RECORDS, data.getInt(H_RECORDS) + 1);
+        putId(hash, unit);
+    }
+
+    /**
+     * finds the palettes closest to a palette
+     * @param colors    query palette colors(ARGB)
+     * @param sizes     size of every cluster
+     * @param k         max no of palettes to return
+     * @return List     up to k matches, closest first
+     */
+    public synchronized List<Match> query(int[] colors, int[] sizes, int k){
+        Palette q = Palette.of(colors, sizes);
+        List<Match> matches = new ArrayList<>();
+        if(q.n == 0 || k <= 0) return matches;
+
+        //shares of the query in its cells and the cells next to the borders it is close to
+        float[] cellShares = new float[CELLS];
+        for(int i = 0; i < q.n; i++){
+            addCells(q.colors[i], q.shares[i], cellShares);
+        }
+
+        //histogram intersection of the coarse cells, for every record that shares a cell with the query
+        int units = data.getInt(H_UNITS);
+        float[] scores = new float[units];
+        int[] touched = new int[64];
+        int nTouched = 0;
+        for(int c = 0; c < CELLS; c++){
+            if(cellShares[c] == 0) continue;
+            for(int block = data.getInt(H_HEADS + 4 * c); block != 0; block = data.getInt(block * UNIT + B_PREV)){
+                int base = block * UNIT;
+                int count = data.getInt(base + B_COUNT);
+                for(int i = 0; i < count; i++){
+                    int posting = data.getInt(base + B_POSTINGS + 4 * i);
+                    int unit = posting >>> 8;
+                    if(scores[unit] == 0){
+                        if(nTouched == touched.length) touched = Arrays.copyOf(touched, 2 * nTouched);
+                        touched[nTouched++] = unit;
+                    }
+                    scores[unit] += Math.min(cellShares[c], (posting & 0xFF) / 255f);
+                }
+            }
+        }
+
+        //best candidates first(positive float bits sort like the floats)
+        long[] order = new long[nTouched];
+        for(int i = 0; i < nTouched; i++){
+            order[i] = (long) Float.floatToIntBits(scores[touched[i]]) << 32 | touched[i];
+        }
+        Arrays.sort(order);
+        float[] qCoords = q.coordinates(coords);
+        List<Match> candidates = new ArrayList<>();
+        //postings of deleted/replaced records are still in the cells, they don't count against MAX_CANDIDATES
+        for(int i = nTouched - 1; i >= 0 && candidates.size() < MAX_CANDIDATES; i--){
+            int base = (int) order[i] * UNIT;
+            if(data.get(base) != TYPE_RECORD) continue;
+            Palette r = read(base);
+            candidates.add(new Match(readId(base), distance(q, qCoords, r, r.coordinates(coords))));
+        }
+        Match[] sorted = candidates.toArray(new Match[0]);
+        Arrays.sort(sorted, new Comparator<Match>(){
+            @Override
+            public int compare(Match a, Match b){
+                return Double.compare(a.distance, b.distance);
+            }
+        });
+        for(int i = 0; i < Math.min(k, sorted.length); i++){
+            matches.add(sorted[i]);
+        }
+        return matches;
+    }
+
+    /**
+     * writes the mapped pages to the files
+     */
+    public synchronized void flush(){
+        if(data != null) data.force();
+        if(ids != null) ids.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException{
+        flush();
+        data = null;
+        ids = null;
+        try{
+            if(dataFile != null) dataFile.close();
+        }
+        finally{
+            if(idFile != null) idFile.close();
+        }
+    }
+
+    /**
+     * Earth mover's style distance between two palettes: the shares of the colors are moved between the closest
+     * pairs of colors first(a greedy transport, close to the optimal one for palettes this small),
+     * the distance is the sum of every moved share times the OKLab distance it is moved over
+     */
+    static double distance(Palette a, float[] aCoords, Palette b, float[] bCoords){
+        //every pair of colors, closest first(distance in the high bits, pair in the low 32)
+        long[] pairs = new long[a.n * b.n];
+        for(int i = 0; i < a.n; i++){
+            for(int j = 0; j < b.n; j++){
+                float dx = aCoords[3 * i] - bCoords[3 * j], dy = aCoords[3 * i + 1] - bCoords[3 * j + 1], dz = aCoords[3 * i + 2] - bCoords[3 * j + 2];
+                float dist = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+                pairs[i * b.n + j] = (long) Float.floatToIntBits(dist) << 32 | (i * b.n + j);
+            }
+        }
+        Arrays.sort(pairs);
+        float[] supply = Arrays.copyOf(a.shares, a.n);
+        float[] demand = Arrays.copyOf(b.shares, b.n);
+        double cost = 0;
+        for(long pair : pairs){
+            int i = (int) pair / b.n, j = (int) pair % b.n;
+            float flow = Math.min(supply[i], demand[j]);
+            if(flow <= 0) continue;
+            cost += flow * Float.intBitsToFloat((int)(pair >>> 32));
+            supply[i] -= flow;
+            demand[j] -= flow;
+        }
+        return cost;
+    }
+
+    /**
+     * @return int  coarse cell of a color
+     */
+    private static int cell(int color){
+        int shift = 8 - CELL_BITS;
+        return (((color >> 16) & 0xFF) >> shift) << (2 * CELL_BITS) | (((color >> 8) & 0xFF) >> shift) << CELL_BITS | (color & 0xFF) >> shift;
+    }
+
+    /**
+     * adds the share to the cell of the color and to the neighbouring cells of the borders it is within BORDER of
+     */
+    private static void addCells(int color, float share, float[] cellShares){
+        int shift = 8 - CELL_BITS, width = 1 << shift, max = (1 << CELL_BITS) - 1;
+        int[] channels = {(color >> 16) & 0xFF, (color >> 8) & 0xFF, color & 0xFF};
+        int[][] options = new int[3][];
+        for(int ch = 0; ch < 3; ch++){
+            int level = channels[ch] >> shift, offset = channels[ch] & (width - 1);
+            if(offset < BORDER && level > 0) options[ch] = new int[]{level, level - 1};
+            else if(width - offset <= BORDER && level < max) options[ch] = new int[]{level, level + 1};
+            else options[ch] = new int[]{level};
+        }
+        for(int r : options[0]){
+            for(int g : options[1]){
+                for(int b : options[2]){
+                    cellShares[r << (2 * CELL_BITS) | g << CELL_BITS | b] += share;
+                }
+            }
+        }
+    }
+
+    /**
+     * appends a posting to the cell's last block, or to a new block linked to it
+     */
+    private void post(int cell, int unit, float share) throws IOException{
+        int block = data.getInt(H_HEADS + 4 * cell);
+        if(block == 0 || data.getInt(block * UNIT + B_COUNT) == BLOCK_POSTINGS){
+            int prev = block;
+            block = allocate();
+            data.putInt(block * UNIT + B_COUNT, 0);
+            data.putInt(block * UNIT + B_PREV, prev);
+            data.put(block * UNIT, TYPE_BLOCK);
+            data.putInt(H_HEADS + 4 * cell, block);
+        }
+        int base = block * UNIT;
+        int count = data.getInt(base + B_COUNT);
+        data.putInt(base + B_POSTINGS + 4 * count, unit << 8 | Math.round(Math.min(share, 1f) * 255));
+        data.putInt(base + B_COUNT, count + 1);
+    }
+
+    /**
+     * @return int  a new unit at the end of the data file, the file is grown if it is full
+     */
+    private int allocate() throws IOException{
+        int unit = data.getInt(H_UNITS);
+        long needed = (long)(unit + 1) * UNIT;
+        long max = (long) MAX_UNITS * UNIT;
+        if(needed > max) throw new IOException("Palette index is full");
+        if(needed > data.capacity()){
+            data.force();
+            data = map(dataFile, Math.min(max, Math.max(needed, 2L * data.capacity())));
+        }
+        //a reused file can have stale bytes past the units in use
+        for(int i = 0; i < UNIT; i += 8){
+            data.putLong(unit * UNIT + i, 0);
+        }
+        data.putInt(H_UNITS, unit + 1);
+        return unit;
+    }
+
+    private Palette read(int base){
+        Palette p = new Palette(data.get(base + R_COLORS));
+        for(int i = 0; i < p.n; i++){
+            p.colors[i] = data.getInt(base + R_ARGB + 4 * i);
+            p.shares[i] = (data.getShort(base + R_SHARES + 2 * i) & 0xFFFF) / 65535f;
+        }
+        return p;
+    }
+
+    private String readId(int base){
+        byte[] bytes = new byte[data.getShort(base + R_ID_LENGTH)];
+        for(int i = 0; i < bytes.length; i++){
+            bytes[i] = data.get(base + R_ID + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * @return long     FNV-1a hash of the id, never 0(0 marks an empty entry)
+     */
+    private static long hash(byte[] id){
+        long h = 0xcbf29ce484222325L;
+        for(byte b : id){
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * @return int  entry of the id's hash in the table, or the empty entry where it would go
+     */
+    private int slot(long hash){
+        int mask = ids.getInt(T_CAPACITY) - 1;
+        int i = (int)(hash ^ (hash >>> 32)) & mask;
+        while(true){
+            long h = ids.getLong(T_ENTRIES + i * T_ENTRY);
+            if(h == 0 || h == hash) return i;
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * @return int  unit of the id's live record, 0 if it isn't indexed
+     */
+    private int findId(long hash, byte[] id){
+        int i = slot(hash);
+        if(ids.getLong(T_ENTRIES + i * T_ENTRY) == 0) return 0;
+        int unit = ids.getInt(T_ENTRIES + i * T_ENTRY + 8);
+        //a 64 bit hash collision is unlikely, but would replace the other id's palette
+        return Arrays.equals(readId(unit * UNIT).getBytes(UTF_8), id) ? unit : 0;
+    }
+
+    private void putId(long hash, int unit) throws IOException{
+        int i = slot(hash);
+        boolean added = ids.getLong(T_ENTRIES + i * T_ENTRY) == 0;
+        ids.putLong(T_ENTRIES + i * T_ENTRY, hash);
+        ids.putInt(T_ENTRIES + i * T_ENTRY + 8, unit);
+        if(!added) return;
+        int size = ids.getInt(T_SIZE) + 1;
+        ids.putInt(T_SIZE, size);
+        if(2 * size > ids.getInt(T_CAPACITY)) growIds();
+    }
+
+    /**
+     * doubles the id table, the entries are rehashed from the table itself without reading the records
+     */
+    private void growIds() throws IOException{
+        int capacity = ids.getInt(T_CAPACITY);
+        long[] hashes = new long[capacity];
+        int[] units = new int[capacity];
+        for(int i = 0; i < capacity; i++){
+            hashes[i] = ids.getLong(T_ENTRIES + i * T_ENTRY);
+            units[i] = ids.getInt(T_ENTRIES + i * T_ENTRY + 8);
+        }
+        ids = map(idFile, T_ENTRIES + (long) T_ENTRY * capacity * 2);
+        for(int i = 0; i < capacity * 2; i++){
+            ids.putLong(T_ENTRIES + i * T_ENTRY, 0);
+        }
+        ids.putInt(T_CAPACITY, capacity * 2);
+        for(int i = 0; i < capacity; i++){
+            if(hashes[i] == 0) continue;
+            int j = slot(hashes[i]);
+            ids.putLong(T_ENTRIES + j * T_ENTRY, hashes[i]);
+            ids.putInt(T_ENTRIES + j * T_ENTRY + 8, units[i]);
+        }
+    }
+
+    /**
+     * Up to MAX_COLORS colors of a palette with their shares, largest first
+     */
+    static final class Palette {
+        final int n;
+        final int[] colors;
+        final float[] shares;
+
+        Palette(int n){
+            this.n = n;
+            this.colors = new int[n];
+            this.shares = new float[n];
+        }
+
+        /**
+         * @return Palette  the MAX_COLORS largest clusters, with their share of those clusters
+         */
+        static Palette of(int[] colors, int[] sizes){
+            int len = Math.min(colors.length, sizes.length);
+            //size in the high bits, index in the low 32
+            long[] order = new long[len];
+            int m = 0;
+            for(int i = 0; i < len; i++){
+                if(sizes[i] > 0) order[m++] = (long) sizes[i] << 32 | i;
+            }
+            Arrays.sort(order, 0, m);
+            Palette p = new Palette(Math.min(m, MAX_COLORS));
+            long total = 0;
+            for(int i = 0; i < p.n; i++){
+                total += order[m - 1 - i] >>> 32;
+            }
+            for(int i = 0; i < p.n; i++){
+                long o = order[m - 1 - i];
+                p.colors[i] = colors[(int) o];
+                p.shares[i] = (float)((o >>> 32) / (double) total);
+            }
+            return p;
+        }
+
+        /**
+         * @return boolean  true if the palettes have the same colors with the same shares(as stored in a record)
+         */
+        boolean sameAs(Palette other){
+            if(n != other.n) return false;
+            for(int i = 0; i < n; i++){
+                if(colors[i] != other.colors[i] || Math.round(shares[i] * 65535) != Math.round(other.shares[i] * 65535)) return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return float[]  (size 3n) OKLab coordinates of the colors
+         */
+        float[] coordinates(float[] buf){
+            float[] out = new float[3 * n];
+            for(int i = 0; i < n; i++){
+                ColorDistance.OKLAB.toCoordinates(colors[i], buf);
+                out[3 * i] = buf[0];
+                out[3 * i + 1] = buf[1];
+                out[3 * i + 2] = buf[2];
+            }
+            return out;
+        }
+    }
+}
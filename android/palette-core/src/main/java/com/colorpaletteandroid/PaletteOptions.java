@@ -0,0 +1,113 @@
+package com.colorpaletteandroid;
+
+/**
+ * Options for a single palette generation job. 
+ * The defaults give the same palette as clustering the raw pixel array.
+ */
+public class PaletteOptions {
+    //no of colors in the palette
+    public int clusters = 16;
+    //no of k-medoids restarts, the lowest-cost one is the final palette. 
+    //0 picks 10, or 1 if parallelAssign is on or the engine is FASTPAM
+    public int restarts = 0;
+    //the longer side of the image is scaled down to about this many pixels before clustering
+    public int maxDimension = 500;
+    //seed for the random generators of the restarts, null for a random palette every time. 
+    //With a seed the final palette is the same no matter how many threads run the restarts(and pruning is off)
+    public Long seed = null;
+    //collapse the pixels into unique colors with counts before clustering
+    public boolean compress = true;
+    //if > 0, every channel is reduced to this many bits before compressing(5 or 6 works well for photos)
+    public int quantizeBits = 0;
+    //metric used to compare colors
+    public ColorDistance distance = ColorDistance.PACKED;
+    //algorithm used to find the palette. The quantizer engines(MEDIAN_CUT, OCTREE) ignore the options 
+    //of the medoid engines(restarts, seed, compress, quantizeBits, distance, iterations, pruning, progressive)
+    public ClusterEngine engine = ClusterEngine.PAM;
+    //quantizer engine(MEDIAN_CUT or OCTREE) whose palette gives the starting medoids of the first restart 
+    //of PAM, CLARA or FASTPAM, which then needs fewer iterations. null seeds every restart with k-means++
+    public ClusterEngine seedWith = null;
+    //no of pixels in every sample of the CLARA engine
+    public int samplePixels = 4096;
+    //no of candidate colors tried by every swap pass of the FASTPAM engine, drawn by pixel count. 
+    //Images with fewer colors try every color
+    public int swapCandidates = 16;
+
+    //max no of assignment passes per restart
+    public int maxIterations = 100;
+    //a restart has converged when its cost improves by less than this fraction of the previous cost
+    public double minCostDelta = 1e-4;
+    //a restart has converged when less than this fraction of the pixels change clusters in a pass
+    public double minMovedFraction = 0.001;
+    //a restart is stopped if its cost is still more than pruneRatio times the best cost of the 
+    //other restarts after pruneAfter passes, 0 turns pruning off. Not used with a seed
+    public double pruneRatio = 1.5;
+    public int pruneAfter = 3;
+    //split every assignment pass of a single restart across cores, instead of running 10 restarts in parallel.
+    //Gives the fastest first palette for interactive requests
+    public boolean parallelAssign = false;
+    //with the packed metric, find the closest medoid of the sorted colors with a single sweep 
+    //over the sorted medoids instead of comparing against every medoid. Same result, O(n + k) per pass
+    public boolean sortedAssign = true;
+    //order of the job's tasks on a PriorityExecutor, higher runs first(eg. visible items before prefetching). 
+    //Doesn't change the palette, so it isn't part of the cache key
+    public int priority = 0;
+    //send the stats of every restart to PaletteCallback.onRunStats
+    public boolean reportStats = false;
+    //look up/store the palette in the palette cache
+    public boolean cache = true;
+    //send the module's metrics with the final palette
+    public boolean metrics = false;
+    //cluster a sample of previewPixels pixels first and send it as a coarse palette right away, 
+    //the first restart then refines that palette on all the pixels
+    public boolean progressive = false;
+    public int previewPixels = 5000;
+    //max no of intermediate palettes sent per second, improvements in between are coalesced 
+    //into the next one that is sent. 0 sends every improvement, the final palette is always sent
+    public int maxEmitsPerSecond = 10;
+
+    //streaming sessions(PaletteSession), not part of the cache key as session palettes aren't cached. 
+    //max no of assignment passes of a frame that starts from the last frame's palette
+    public int warmIterations = 3;
+    //a frame whose color histogram differs from the last frame's by more than this fraction of its pixels 
+    //is a new scene, and is clustered from scratch with up to maxIterations passes
+    public double sceneChangeThreshold = 0.3;
+    //a frame's palette is only sent if its colors moved by at least this much from the last sent palette 
+    //(mean RGB distance weighted by the cluster sizes, 0-441)
+    public double minPaletteChange = 6;
+
+    /**
+     * @return String   all the options that change the palette, used in the palette cache key. 
+     *                  Without a seed every palette is random, so any cached palette of the image is as good as a new one
+     */
+    public String cacheKey(){
+        return "k=" + clusters + ",r=" + restarts + ",d=" + maxDimension + ",s=" + seed 
+                + ",m=" + distance + ",c=" + compress + ",q=" + quantizeBits 
+                + ",it=" + maxIterations + ",dc=" + minCostDelta + ",mv=" + minMovedFraction
+                + ",pr=" + pruneRatio + "/" + pruneAfter + ",p=" + parallelAssign
+                + ",pg=" + (progressive ? previewPixels : 0)
+                + ",e=" + engine + (engine == ClusterEngine.CLARA ? "/" + samplePixels : "")
+                + (engine == ClusterEngine.FASTPAM ? "/" + swapCandidates : "")
+                + ",sw=" + seedWith;
+    }
+
+    /**
+     * checks that the options are in range
+     * @throws IllegalArgumentException if an option is out of range
+     */
+    public void validate(){
+        if(clusters < 1) throw new IllegalArgumentException("k must be at least 1");
+        if(restarts < 0) throw new IllegalArgumentException("restarts can't be negative");
+        if(maxIterations < 1) throw new IllegalArgumentException("maxIterations must be at least 1");
+        if(maxDimension < 1) throw new IllegalArgumentException("maxDimension must be at least 1");
+        if(quantizeBits < 0 || quantizeBits > 8) throw new IllegalArgumentException("quantizeBits must be between 0 and 8");
+        if(samplePixels < 1) throw new IllegalArgumentException("samplePixels must be at least 1");
+        if(swapCandidates < 1) throw new IllegalArgumentException("swapCandidates must be at least 1");
+        if(previewPixels < 1) throw new IllegalArgumentException("previewPixels must be at least 1");
+        if(seedWith != null && seedWith.quantizer() == null) throw new IllegalArgumentException("seedWith must be a quantizer engine(median-cut or octree)");
+        if(warmIterations < 1) throw new IllegalArgumentException("warmIterations must be at least 1");
+        if(sceneChangeThreshold < 0 || sceneChangeThreshold > 1) throw new IllegalArgumentException("sceneChangeThreshold must be between 0 and 1");
+        if(minPaletteChange < 0) throw new IllegalArgumentException("minPaletteChange can't be negative");
+        if(maxEmitsPerSecond < 0) throw new IllegalArgumentException("maxEmitsPerSecond can't be negative");
+    }
+}
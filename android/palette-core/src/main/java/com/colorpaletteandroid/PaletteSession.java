@@ -0,0 +1,311 @@
+package com.colorpaletteandroid;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Palettes of a stream of frames(camera preview, video). Consecutive frames are nearly identical, so instead of
+ * a full job per frame every frame runs a single restart that starts from the last frame's palette and stops
+ * after options.warmIterations passes. A frame whose color histogram is far from the last one's is a scene change,
+ * and is clustered from scratch(options.seedWith or k-means++, up to options.maxIterations passes).
+ * A palette is only sent when it moved by at least options.minPaletteChange from the last one that was sent,
+ * and a warm-started palette keeps the order of the last one, so the palette doesn't flicker.
+ *
+ * Frames are clustered one at a time on the executor, a frame that arrives while another one is being clustered
+ * replaces any frame still waiting, so a slow device skips frames instead of falling behind.
+ * The callback gets every palette with Final false, the stats of every frame(run is the frame no) if
+ * options.reportStats is set, and onFinish once after close(). Its calls run on the emitter(like GenColorPalette's) 
+ * and never overlap. The sort buffer, color set and generator are kept for the whole session, so a frame 
+ * no larger than the ones before it doesn't allocate any pixel sized buffers
+ */
+public class PaletteSession {
+    private static final Logger LOG = Logger.getLogger("ColorPaletteModule");
+    //default maxDimension of the frames, small enough to cluster at frame rate
+    public static final int MAX_DIMENSION = 160;
+    //bits per channel of the histogram that detects scene changes
+    private static final int SCENE_BITS = 3;
+
+    private final PaletteOptions options;
+    private final PaletteCallback callback;
+    private final Executor executor;
+    //runs the callbacks in order, null to run them on the cluster thread
+    private final Executor emitter;
+    //timers and counters of the module, null if they aren't recorded
+    private final MetricsRegistry metrics;
+    //random generators of the frames clustered from scratch
+    private final SplitMix64 random;
+
+    //latest frame that isn't clustered yet, and a clustered frame whose buffer can be reused
+    private final AtomicReference<Frame> pending = new AtomicReference<Frame>();
+    private final AtomicReference<Frame> spare = new AtomicReference<Frame>();
+    //true while a drain task is queued or running
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+    private final AtomicBoolean finishSent = new AtomicBoolean(false);
+    private final Runnable drainTask = new Runnable(){
+        @Override
+        public void run(){
+            drain();
+        }
+    };
+
+    //only used by the drain task, which runs one at a time
+    //no of frames clustered
+    private int frameNo = 0;
+    //palette of the last frame(null before the first one) and the last palette that was sent
+    private int[] lastColors;
+    private int[] sentColors;
+    //scene histogram of the last frame, and the buffer of the next one
+    private int[] lastHistogram = new int[1 << (3 * SCENE_BITS)];
+    private int[] histogram = new int[1 << (3 * SCENE_BITS)];
+    private int lastHistogramTotal;
+    //radix sort buffer and colors of the frames, and the generator that clusters them
+    private int[] sortBuffer = new int[0];
+    private final PixelSet set = new PixelSet();
+    private final GenColorPalette gen;
+
+    /**
+     * @param options   options of every frame, the quantizer engines can't be used
+     * @param callback  gets the palettes of the frames
+     * @param executor  runs the clustering of the frames
+     * @param emitter   single thread(or otherwise serial) executor that runs the callbacks, 
+     *                  null to run them on the executor's thread
+     * @param metrics   timers and counters of the module(can be null)
+     * @throws IllegalArgumentException if the options are out of range or the engine is a quantizer
+     */
+    PaletteSession(PaletteOptions options, PaletteCallback callback, Executor executor, Executor emitter, MetricsRegistry metrics){
+        options.validate();
+        if(options.engine.quantizer() != null) throw new IllegalArgumentException("Sessions can't use the " + options.engine + " engine");
+        this.options = options;
+        this.callback = callback;
+        this.executor = executor;
+        this.emitter = emitter;
+        this.metrics = metrics;
+        this.random = options.seed == null ? SplitMix64.unseeded() : new SplitMix64(options.seed);
+        //only used through runSingle, which never calls the callback
+        this.gen = new GenColorPalette(null, 0, options, callback, null, null, null, metrics);
+    }
+
+    /**
+     * @return int  longer side the frames should be scaled down to
+     */
+    public int maxDimension(){
+        return options.maxDimension;
+    }
+
+    /**
+     * Queues a frame, replacing the frame that is waiting if there is one. Returns right away
+     * @param pixels    ARGB pixels of the frame, copied so the buffer can be reused as soon as this returns
+     * @param length    no of pixels in the buffer
+     */
+    public void submitFrame(int[] pixels, int length){
+        if(closed || length <= 0) return;
+        Frame frame = spare.getAndSet(null);
+        if(frame == null) frame = new Frame();
+        if(frame.pixels.length < length) frame.pixels = new int[length];
+        System.arraycopy(pixels, 0, frame.pixels, 0, length);
+        frame.length = length;
+
+        Frame dropped = pending.getAndSet(frame);
+        if(dropped != null){
+            spare.set(dropped);
+            if(metrics != null) metrics.droppedFrames.incrementAndGet();
+        }
+        schedule();
+    }
+
+    /**
+     * Stops the session, a waiting frame is dropped and onFinish is called once the frame being clustered(if any) is done
+     */
+    public void close(){
+        closed = true;
+        schedule();
+    }
+
+    private void schedule(){
+        if(scheduled.compareAndSet(false, true)) executor.execute(new PriorityExecutor.Task(options.priority, drainTask));
+    }
+
+    /**
+     * clusters the waiting frames until there are none, runs on the executor one at a time
+     */
+    private void drain(){
+        while(true){
+            if(closed){
+                //scheduled stays set, so nothing runs after onFinish
+                pending.set(null);
+                if(finishSent.compareAndSet(false, true)){
+                    emit(new Runnable(){
+                        @Override
+                        public void run(){
+                            callback.onFinish();
+                        }
+                    });
+                }
+                return;
+            }
+            Frame frame = pending.getAndSet(null);
+            if(frame == null){
+                scheduled.set(false);
+                //a frame or a close that came in after the getAndSet couldn't schedule a drain
+                if((pending.get() != null || closed) && scheduled.compareAndSet(false, true)) continue;
+                return;
+            }
+            try{
+                clusterFrame(frame);
+            }
+            catch(final Exception e){
+                LOG.log(Level.WARNING, "Exception in frame " + frameNo, e);
+                emit(new Runnable(){
+                    @Override
+                    public void run(){
+                        callback.onError(e);
+                    }
+                });
+            }
+            spare.set(frame);
+        }
+    }
+
+    /**
+     * clusters a frame, warm-started from the last frame unless the scene changed, and sends its palette if it changed enough
+     */
+    private void clusterFrame(Frame frame){
+        long start = System.nanoTime();
+        final RunStats stats = new RunStats();
+        stats.run = frameNo++;
+
+        //the histogram is taken before the pixels are quantized and sorted
+        sceneHistogram(frame.pixels, frame.length, histogram);
+        boolean reseed = lastColors == null || sceneChange(histogram, frame.length) > options.sceneChangeThreshold;
+        int[] tmp = lastHistogram;
+        lastHistogram = histogram;
+        histogram = tmp;
+        lastHistogramTotal = frame.length;
+
+        prepare(frame);
+        int[] colors = new int[options.clusters];
+        int[] sizes = new int[options.clusters];
+        //the generator is only used if the warm start can't be(ie. the last frame had fewer colors)
+        int n = reseed
+                ? gen.runSingle(set, null, options.maxIterations, random.split(), stats, colors, sizes)
+                : gen.runSingle(set, lastColors, options.warmIterations, random.split(), stats, colors, sizes);
+        stats.timeNanos = System.nanoTime() - start;
+        if(metrics != null){
+            metrics.frame.record(stats.timeNanos);
+            if(reseed) metrics.reseededFrames.incrementAndGet();
+        }
+        if(options.reportStats){
+            emit(new Runnable(){
+                @Override
+                public void run(){
+                    callback.onRunStats(stats);
+                }
+            });
+        }
+        if(n == 0) return;
+
+        //the arrays are passed to the callback, so they are never changed after this
+        if(n < colors.length){
+            colors = Arrays.copyOf(colors, n);
+            sizes = Arrays.copyOf(sizes, n);
+        }
+        lastColors = colors;
+        if(sentColors != null && sentColors.length == n && paletteChange(colors, sizes, sentColors) < options.minPaletteChange){
+            if(metrics != null) metrics.unchangedFrames.incrementAndGet();
+            return;
+        }
+        sentColors = colors;
+        final int[] palette = colors, clusterSizes = sizes;
+        emit(new Runnable(){
+            @Override
+            public void run(){
+                callback.onPaletteGen(palette, clusterSizes, false);
+            }
+        });
+    }
+
+    /**
+     * quantizes and radix sorts the frame's pixels in place(the frame buffer is the session's) and refills set with them, 
+     * reusing the sort buffer and the set's arrays
+     */
+    private void prepare(Frame frame){
+        int[] pixels = frame.pixels;
+        int length = frame.length;
+        if(options.quantizeBits > 0){
+            for(int i = 0; i < length; i++){
+                pixels[i] = PixelSet.quantize(pixels[i], options.quantizeBits);
+            }
+        }
+        long sortStart = System.nanoTime();
+        if(sortBuffer.length < length) sortBuffer = new int[length];
+        PixelSort.sort(pixels, length, null, sortBuffer);
+        if(metrics != null) metrics.sort.since(sortStart);
+        set.fill(pixels, length, options.compress);
+        set.setDistance(options.distance);
+    }
+
+    /**
+     * runs a callback task on the emitter, or right away if there is none
+     */
+    private void emit(Runnable task){
+        if(emitter == null) task.run();
+        else emitter.execute(task);
+    }
+
+    /**
+     * fills bins with the no of pixels in every bin of a coarse histogram(SCENE_BITS per channel)
+     */
+    private static void sceneHistogram(int[] pixels, int length, int[] bins){
+        Arrays.fill(bins, 0);
+        int shift = 8 - SCENE_BITS;
+        for(int i = 0; i < length; i++){
+            int p = pixels[i];
+            bins[(((p >> 16) & 0xFF) >> shift) << (2 * SCENE_BITS) | (((p >> 8) & 0xFF) >> shift) << SCENE_BITS | (p & 0xFF) >> shift]++;
+        }
+    }
+
+    /**
+     * @return double   fraction of the pixels that would have to change bins to turn the last frame's histogram
+     *                  into this one(total variation distance, 0-1)
+     */
+    private double sceneChange(int[] histogram, int total){
+        double diff = 0;
+        for(int i = 0; i < histogram.length; i++){
+            diff += Math.abs(histogram[i] / (double) total - lastHistogram[i] / (double) lastHistogramTotal);
+        }
+        return diff / 2;
+    }
+
+    /**
+     * @return double   mean RGB distance from every color to the closest color of the old palette, weighted by the cluster sizes
+     */
+    static double paletteChange(int[] colors, int[] sizes, int[] old){
+        double change = 0;
+        long total = 0;
+        for(int i = 0; i < colors.length; i++){
+            double closest = Double.MAX_VALUE;
+            for(int o : old){
+                int dr = ((colors[i] >> 16) & 0xFF) - ((o >> 16) & 0xFF);
+                int dg = ((colors[i] >> 8) & 0xFF) - ((o >> 8) & 0xFF);
+                int db = (colors[i] & 0xFF) - (o & 0xFF);
+                closest = Math.min(closest, Math.sqrt(dr * dr + dg * dg + db * db));
+            }
+            change += closest * sizes[i];
+            total += sizes[i];
+        }
+        return total == 0 ? 0 : change / total;
+    }
+
+    /**
+     * Pixel buffer of a frame, reused once the frame is clustered
+     */
+    private static final class Frame {
+        int[] pixels = new int[0];
+        int length;
+    }
+}
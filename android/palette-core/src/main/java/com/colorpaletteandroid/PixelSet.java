@@ -0,0 +1,240 @@
+package com.colorpaletteandroid;
+
+import java.util.Arrays;
+
+/**
+ * Sorted colors with a weight(no of pixels) for each color, this is what the clustering runs on.
+ * A photo usually has far fewer unique colors than pixels, so clustering the weighted unique 
+ * colors gives the same result as clustering every pixel with a lot less work per iteration.
+ * A set can be refilled(fill, sampleInto) so that a stream of frames or swap passes reuse its arrays, 
+ * which are then longer than size, only the first size elements are used.
+ */
+public class PixelSet {
+    //sorted colors
+    int[] colors;
+    //i'th element is the no of pixels that have the i'th color
+    int[] weights;
+    //no of colors
+    int size;
+    //total no of pixels
+    long totalWeight;
+    //metric used to compare the colors
+    ColorDistance distance = ColorDistance.PACKED;
+    //coordinates of every color in the space of the metric(structure of arrays), null for PACKED
+    float[] x, y, z;
+    //positions of the sampled pixels, only used while sampleInto refills this set
+    private double[] positions = new double[0];
+
+    /**
+     * empty set, to be filled with fill or sampleInto
+     */
+    PixelSet(){
+        this(new int[0], new int[0], 0, 0);
+    }
+
+    private PixelSet(int[] colors, int[] weights, int size, long totalWeight){
+        this.colors = colors;
+        this.weights = weights;
+        this.size = size;
+        this.totalWeight = totalWeight;
+    }
+
+    /**
+     * refills the set from a sorted pixel array like fromSorted, the arrays are only replaced if they are too short. 
+     * The metric is PACKED until setDistance is called, which also refills the coordinates
+     * @param sorted        sorted pixel array, not kept by the PixelSet
+     * @param n             no of pixels in the array
+     * @param compress      see fromSorted
+     */
+    void fill(int[] sorted, int n, boolean compress){
+        int unique = n;
+        if(compress){
+            unique = 0;
+            for(int i = 0; i < n; i++){
+                if(i == 0 || sorted[i] != sorted[i - 1]) unique++;
+            }
+        }
+        if(colors.length < unique){
+            colors = new int[unique];
+            weights = new int[unique];
+        }
+        int curr = -1;
+        for(int i = 0; i < n; i++){
+            if(!compress || i == 0 || sorted[i] != sorted[i - 1]){
+                curr++;
+                colors[curr] = sorted[i];
+                weights[curr] = 0;
+            }
+            weights[curr] += 1;
+        }
+        size = unique;
+        totalWeight = n;
+        distance = ColorDistance.PACKED;
+    }
+
+    /**
+     * builds a PixelSet from a sorted pixel array
+     * @param sorted        sorted pixel array, not kept by the PixelSet
+     * @param n             no of pixels in the array
+     * @param compress      if true, equal pixels are collapsed into a single color with its count as the weight,
+     *                      otherwise every pixel is kept with a weight of 1
+     * @return PixelSet
+     */
+    static PixelSet fromSorted(int[] sorted, int n, boolean compress){
+        //a new set's arrays are allocated at the exact size
+        PixelSet set = new PixelSet();
+        set.fill(sorted, n, compress);
+        return set;
+    }
+
+    /**
+     * takes n pixels of the set, either evenly spaced in sorted order(every color keeps about 
+     * n/totalWeight of its pixels) or at random positions. Used for the preview palette and the CLARA engine
+     * @param n         no of pixels to take
+     * @param random    source of the random positions, null for evenly spaced pixels
+     * @return PixelSet compressed sample with the same metric, sorted
+     */
+    PixelSet sample(int n, SplitMix64 random){
+        PixelSet sample = new PixelSet();
+        sampleInto(n, random, sample);
+        sample.setDistance(distance);
+        return sample;
+    }
+
+    /**
+     * refills a set with a sample of this one like sample, without converting its colors to the metric's 
+     * coordinates(its metric is PACKED). Its arrays are only replaced if they are too short
+     * @param n         no of pixels to take
+     * @param random    source of the random positions, null for evenly spaced pixels
+     * @param sample    set to refill, not this one
+     */
+    void sampleInto(int n, SplitMix64 random, PixelSet sample){
+        //positions of the sampled pixels in the sorted pixels
+        if(sample.positions.length < n) sample.positions = new double[n];
+        double[] positions = sample.positions;
+        double step = totalWeight / (double) n;
+        for(int j = 0; j < n; j++){
+            positions[j] = random == null ? (j + 0.5) * step : random.nextDouble() * totalWeight;
+        }
+        if(random != null) Arrays.sort(positions, 0, n);
+
+        int cap = Math.min(n, size);
+        if(sample.colors.length < cap){
+            sample.colors = new int[cap];
+            sample.weights = new int[cap];
+        }
+        int[] sampleColors = sample.colors;
+        int[] sampleWeights = sample.weights;
+        int unique = 0;
+        long cumWeight = 0;
+        int j = 0;
+        for(int i = 0; i < size && j < n; i++){
+            cumWeight += weights[i];
+            int count = 0;
+            while(j < n && positions[j] < cumWeight){
+                count++;
+                j++;
+            }
+            if(count > 0){
+                sampleColors[unique] = colors[i];
+                sampleWeights[unique] = count;
+                unique++;
+            }
+        }
+        sample.size = unique;
+        sample.totalWeight = j;
+        sample.distance = ColorDistance.PACKED;
+        sample.x = sample.y = sample.z = null;
+    }
+
+    /**
+     * maps colors to the closest colors of the set under its metric, no two colors get the same color of the set. 
+     * Used to start the clustering from a palette that wasn't computed on this set(a quantizer's or the last frame's)
+     * @param targets   colors to map, ARGB
+     * @param n         no of targets to map, at most size
+     * @return int[]    (size n) index in the set of the closest unused color of every target, in the order of the targets
+     */
+    int[] closestColors(int[] targets, int n){
+        int[] closest = new int[n];
+        float[] coords = new float[3];
+        for(int j = 0; j < n; j++){
+            int best = -1;
+            double bestDist = Double.MAX_VALUE;
+            if(distance == ColorDistance.PACKED){
+                for(int i = 0; i < size; i++){
+                    double dist = Math.abs((double)colors[i] - targets[j]);
+                    if(dist < bestDist && !used(closest, j, i)){
+                        best = i;
+                        bestDist = dist;
+                    }
+                }
+            }
+            else{
+                distance.toCoordinates(targets[j], coords);
+                for(int i = 0; i < size; i++){
+                    float dx = x[i] - coords[0], dy = y[i] - coords[1], dz = z[i] - coords[2];
+                    double dist = dx * dx + dy * dy + dz * dz;
+                    if(dist < bestDist && !used(closest, j, i)){
+                        best = i;
+                        bestDist = dist;
+                    }
+                }
+            }
+            closest[j] = best;
+        }
+        return closest;
+    }
+
+    /**
+     * @return boolean  true if color i is one of the first n closest colors, n is at most the no of clusters 
+     *                  so this is cheaper than a flag per color
+     */
+    private static boolean used(int[] closest, int n, int i){
+        for(int j = 0; j < n; j++){
+            if(closest[j] == i) return true;
+        }
+        return false;
+    }
+
+    /**
+     * sets the metric used to compare the colors, and converts every color into its coordinates 
+     * so the conversion is done once per unique color instead of in the clustering loops
+     * @param distance  color distance metric
+     */
+    void setDistance(ColorDistance distance){
+        this.distance = distance;
+        if(distance == ColorDistance.PACKED){
+            x = y = z = null;
+            return;
+        }
+        //a refilled set keeps its coordinate arrays if they are long enough
+        if(x == null || x.length < size){
+            x = new float[size];
+            y = new float[size];
+            z = new float[size];
+        }
+        float[] coords = new float[3];
+        for(int i = 0; i < size; i++){
+            distance.toCoordinates(colors[i], coords);
+            x[i] = coords[0];
+            y[i] = coords[1];
+            z[i] = coords[2];
+        }
+    }
+
+    /**
+     * reduces every channel of a color to the given no of bits, the color is moved to the center of 
+     * its bucket so that the palette doesn't get darker
+     * @param color     ARGB color
+     * @param bits      no of bits to keep per channel(1-8)
+     * @return int      quantized color
+     */
+    static int quantize(int color, int bits){
+        if(bits <= 0 || bits >= 8) return color;
+        int keep = (0xFF << (8 - bits)) & 0xFF;
+        int mask = 0xFF000000 | (keep << 16) | (keep << 8) | keep;
+        int half = 1 << (7 - bits);
+        int center = (half << 16) | (half << 8) | half;
+        return (color & mask) | center;
+    }
+}
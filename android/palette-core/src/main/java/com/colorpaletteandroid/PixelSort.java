@@ -0,0 +1,154 @@
+package com.colorpaletteandroid;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * LSD radix sort of pixels, 4 passes of 8 bits from the lowest byte. Every pass counts the digits and scatters
+ * the pixels into a second buffer in order, so the sort is O(n) instead of O(n log n). A pass is skipped if all
+ * the pixels have the same digit, which is usually the case for the alpha byte and for the low bits of quantized pixels.
+ * The order is the signed order of Arrays.sort, so the sorted pixels can be searched with Arrays.binarySearch.
+ * With a pool, large arrays are split into a chunk per thread that are counted and scattered in parallel,
+ * every chunk writes to its own range of every bucket so the result is the same as the sequential sort
+ */
+final class PixelSort {
+    private static final int RADIX = 256;
+    //below this many pixels Arrays.sort is faster than 4 counting passes
+    private static final int MIN_RADIX = 512;
+    //min no of pixels per chunk of a parallel pass
+    private static final int MIN_CHUNK = 1 << 15;
+
+    private PixelSort(){}
+
+    /**
+     * sorts the first n pixels of the array in place
+     * @param pixels    pixels to sort
+     * @param n         no of pixels to sort
+     * @param pool      pool to split the passes across(can be null for a sequential sort)
+     */
+    static void sort(int[] pixels, int n, ForkJoinPool pool){
+        sort(pixels, n, pool, null);
+    }
+
+    /**
+     * sorts the first n pixels of the array in place, scattering through a buffer the caller keeps
+     * (eg. a PaletteSession for every frame) instead of a new one
+     * @param pixels    pixels to sort
+     * @param n         no of pixels to sort
+     * @param pool      pool to split the passes across(can be null for a sequential sort)
+     * @param buffer    buffer of at least n pixels, null or a shorter one allocates a buffer for this sort
+     */
+    static void sort(int[] pixels, int n, ForkJoinPool pool, int[] buffer){
+        if(n < MIN_RADIX){
+            Arrays.sort(pixels, 0, n);
+            return;
+        }
+        int chunks = pool == null ? 1 : Math.max(1, Math.min(pool.getParallelism(), n / MIN_CHUNK));
+        int[][] counts = new int[chunks][RADIX];
+        int[] src = pixels, dst = buffer != null && buffer.length >= n ? buffer : new int[n];
+        for(int shift = 0; shift < 32; shift += 8){
+            if(chunks == 1) count(src, 0, n, shift, counts[0]);
+            else pool.invoke(new PassTask(src, dst, n, shift, counts, false));
+            if(!toOffsets(counts, n)) continue;
+            if(chunks == 1) scatter(src, dst, 0, n, shift, counts[0]);
+            else pool.invoke(new PassTask(src, dst, n, shift, counts, true));
+            int[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        if(src != pixels) System.arraycopy(src, 0, pixels, 0, n);
+    }
+
+    /**
+     * @return int  digit of the pixel at the shift, the sign bit is flipped so that negative pixels come first
+     */
+    private static int digit(int pixel, int shift){
+        return ((pixel ^ 0x80000000) >>> shift) & (RADIX - 1);
+    }
+
+    /**
+     * adds the no of pixels with every digit in [from, to) to the counts(which are cleared first)
+     */
+    private static void count(int[] src, int from, int to, int shift, int[] counts){
+        Arrays.fill(counts, 0);
+        for(int i = from; i < to; i++){
+            counts[digit(src[i], shift)]++;
+        }
+    }
+
+    /**
+     * replaces the counts of every chunk with the position of its first pixel of every digit,
+     * chunks in order within every digit
+     * @return boolean  false if every pixel has the same digit, so the pass can be skipped
+     */
+    private static boolean toOffsets(int[][] counts, int n){
+        int pos = 0;
+        for(int d = 0; d < RADIX; d++){
+            int total = 0;
+            for(int[] chunk : counts){
+                total += chunk[d];
+            }
+            if(total == n) return false;
+            for(int[] chunk : counts){
+                int c = chunk[d];
+                chunk[d] = pos;
+                pos += c;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * moves the pixels in [from, to) to their positions in dst, offsets are advanced as they are used
+     */
+    private static void scatter(int[] src, int[] dst, int from, int to, int shift, int[] offsets){
+        for(int i = from; i < to; i++){
+            int p = src[i];
+            dst[offsets[digit(p, shift)]++] = p;
+        }
+    }
+
+    /**
+     * One phase(count or scatter) of a pass over all the chunks, a subtask per chunk
+     */
+    private static final class PassTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int[] src, dst;
+        private final int n, shift;
+        private final int[][] counts;
+        private final boolean scatter;
+        //chunk of this task, -1 for the task that forks the chunks
+        private final int chunk;
+
+        PassTask(int[] src, int[] dst, int n, int shift, int[][] counts, boolean scatter){
+            this(src, dst, n, shift, counts, scatter, -1);
+        }
+
+        private PassTask(int[] src, int[] dst, int n, int shift, int[][] counts, boolean scatter, int chunk){
+            this.src = src;
+            this.dst = dst;
+            this.n = n;
+            this.shift = shift;
+            this.counts = counts;
+            this.scatter = scatter;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute(){
+            if(chunk < 0){
+                PassTask[] tasks = new PassTask[counts.length];
+                for(int c = 0; c < tasks.length; c++){
+                    tasks[c] = new PassTask(src, dst, n, shift, counts, scatter, c);
+                }
+                invokeAll(tasks);
+                return;
+            }
+            int from = (int)((long) n * chunk / counts.length);
+            int to = (int)((long) n * (chunk + 1) / counts.length);
+            if(scatter) scatter(src, dst, from, to, shift, counts[chunk]);
+            else count(src, from, to, shift, counts[chunk]);
+        }
+    }
+}
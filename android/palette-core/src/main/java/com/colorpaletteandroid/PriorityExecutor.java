@@ -0,0 +1,64 @@
+package com.colorpaletteandroid;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pool that runs its queued tasks by priority, higher first and in the order they were queued within
+ * a priority. GenColorPalette and PaletteSession queue their tasks as a Task with PaletteOptions.priority,
+ * any other task gets priority 0. Running tasks aren't preempted, a job that is no longer needed is stopped
+ * with GenColorPalette.cancel(), its queued restarts then exit as soon as they are taken off the queue.
+ * The queue is unbounded, the caller is expected to bound the no of jobs(the module's in-flight slots).
+ * Threads exit after 30s without work
+ */
+public class PriorityExecutor extends ThreadPoolExecutor {
+    //order of the tasks within a priority
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /**
+     * @param threads   no of threads
+     * @param factory   creates the threads
+     */
+    public PriorityExecutor(int threads, ThreadFactory factory){
+        //the caller runs policy only applies after a shutdown, where it drops the task
+        super(threads, threads, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), factory, new CallerRunsPolicy());
+        allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable command){
+        super.execute(command instanceof Task ? command : new Task(0, command));
+    }
+
+    /**
+     * A task with a priority, the order of the queue
+     */
+    public static final class Task implements Runnable, Comparable<Task> {
+        final int priority;
+        private final long sequence = SEQUENCE.getAndIncrement();
+        private final Runnable task;
+
+        /**
+         * @param priority  higher runs first
+         * @param task      task to run
+         */
+        public Task(int priority, Runnable task){
+            this.priority = priority;
+            this.task = task;
+        }
+
+        @Override
+        public void run(){
+            task.run();
+        }
+
+        @Override
+        public int compareTo(Task other){
+            if(priority != other.priority) return priority > other.priority ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.colorpaletteandroid;
+
+/**
+ * A fast palette engine that reduces a color histogram to at most k colors in a fixed no of passes, 
+ * without the restarts and iterations of the medoid engines. Used on its own for thumbnails, 
+ * or to pick the starting medoids of the medoid engines(PaletteOptions.seedWith)
+ */
+interface Quantizer {
+    /**
+     * @param histogram     colors of the image
+     * @param k             max no of colors
+     * @param colors        (size k) filled with the palette colors(ARGB, opaque)
+     * @param sizes         (size k) filled with the no of pixels of every color
+     * @return int          no of colors found, can be less than k if the image has few colors
+     */
+    int quantize(ColorHistogram histogram, int k, int[] colors, int[] sizes);
+}
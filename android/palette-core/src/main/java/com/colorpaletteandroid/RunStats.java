@@ -0,0 +1,21 @@
+package com.colorpaletteandroid;
+
+/**
+ * Stats of a single clustering run(restart), used to tune the convergence options
+ */
+public class RunStats {
+    //index of the restart
+    public int run;
+    //no of assignment passes
+    public int iterations;
+    //wall time of the run, including seeding
+    public long timeNanos;
+    //cost of the best clustering found by the run, Double.MAX_VALUE if it has no result
+    public double cost = Double.MAX_VALUE;
+    //true if the run stopped because one of the convergence criteria was met
+    public boolean converged;
+    //true if the run was stopped because it couldn't beat the best cost of the other runs
+    public boolean pruned;
+    //true if the job was cancelled while the run was in progress
+    public boolean cancelled;
+}
@@ -0,0 +1,72 @@
+package com.colorpaletteandroid;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splittable random generator, the SplitMix64 algorithm of java.util.SplittableRandom(which needs API 24). 
+ * Not thread safe, every restart gets its own generator split off a root generator, so the restarts 
+ * don't share any state and the generator of a restart only depends on the seed and the restart index.
+ */
+public final class SplitMix64 {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    //seeds of the unseeded generators
+    private static final AtomicLong SEEDER = new AtomicLong(mix64(System.currentTimeMillis()) ^ mix64(System.nanoTime()));
+
+    private long seed;
+    //odd increment of the seed, different for every split generator
+    private final long gamma;
+
+    public SplitMix64(long seed){
+        this(seed, GOLDEN_GAMMA);
+    }
+
+    private SplitMix64(long seed, long gamma){
+        this.seed = seed;
+        this.gamma = gamma;
+    }
+
+    /**
+     * @return SplitMix64   a generator with a seed that is different for every call
+     */
+    public static SplitMix64 unseeded(){
+        return new SplitMix64(mix64(SEEDER.getAndAdd(2 * GOLDEN_GAMMA)));
+    }
+
+    /**
+     * @return SplitMix64   a new generator that shares no state with this one, 
+     *                      the generators split off a generator only depend on its seed and the order of the calls
+     */
+    public SplitMix64 split(){
+        return new SplitMix64(nextLong(), mixGamma(nextSeed()));
+    }
+
+    public long nextLong(){
+        return mix64(nextSeed());
+    }
+
+    /**
+     * @return double   uniform in [0, 1)
+     */
+    public double nextDouble(){
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    private long nextSeed(){
+        return seed += gamma;
+    }
+
+    private static long mix64(long z){
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    //odd gamma with enough bit transitions to give a good sequence
+    private static long mixGamma(long z){
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        z = (z ^ (z >>> 33)) | 1L;
+        int n = Long.bitCount(z ^ (z >>> 1));
+        return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+    }
+}